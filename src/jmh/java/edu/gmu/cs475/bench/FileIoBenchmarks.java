@@ -0,0 +1,142 @@
+package edu.gmu.cs475.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.gmu.cs475.AbstractFileTagManager;
+import edu.gmu.cs475.FileTagManager;
+
+/**
+ * Time per catAllFiles/echoToAllFiles call over real files. The files are
+ * created in a scratch directory under BASEDIR (echoToAllFiles refuses to
+ * write anywhere else), which is deleted again afterwards.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileIoBenchmarks {
+
+	private static final String TAG = "bench";
+
+	@Param({ "100", "1000", "10000" })
+	public int files;
+
+	@Param({ "0", "1024", "16384" })
+	public int fileSize;
+
+	@Param({ "1", "4" })
+	public int ioParallelism;
+
+	@Param({ "false", "true" })
+	public boolean atomicEcho;
+
+	private FileTagManager manager;
+	private Path dir;
+	private String content;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = Files.createTempDirectory(Files.createDirectories(AbstractFileTagManager.BASEDIR), ".bench");
+		byte[] bytes = new byte[fileSize];
+		Arrays.fill(bytes, (byte) 'x');
+		content = new String(bytes);
+		List<Path> paths = new ArrayList<>(files);
+		List<String> names = new ArrayList<>(files);
+		for (int i = 0; i < files; i++) {
+			Path sub = Files.createDirectories(dir.resolve("d" + (i % 100)));
+			Path file = Files.write(sub.resolve("f" + i), bytes);
+			paths.add(file);
+			names.add(file.toString());
+		}
+		manager = new FileTagManager();
+		manager.init(paths);
+		manager.addTag(TAG);
+		manager.tagFiles(names, TAG);
+		manager.setIoParallelism(ioParallelism);
+		manager.setAtomicEcho(atomicEcho);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		manager.setIoParallelism(1);
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+				Files.delete(d);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Benchmark
+	public long catAllFilesToChannel() throws Exception {
+		return manager.catAllFiles(TAG, new DiscardChannel());
+	}
+
+	@Benchmark
+	public String catAllFiles() throws Exception {
+		return manager.catAllFiles(TAG);
+	}
+
+	@Benchmark
+	public void echoToAllFiles() throws Exception {
+		manager.echoToAllFiles(TAG, content);
+	}
+
+	/**
+	 * Counts and drops everything written to it
+	 */
+	static final class DiscardChannel implements WritableByteChannel {
+		long written;
+
+		@Override
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			written += n;
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
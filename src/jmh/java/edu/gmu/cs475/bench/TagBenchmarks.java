@@ -0,0 +1,132 @@
+package edu.gmu.cs475.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the tag metadata operations.
+ *
+ * The single-operation benchmarks run on as many threads as -t asks for, so
+ * running them with -t 1,2,4,8,16 shows how the lock striping scales. The
+ * grouped benchmarks mix readers and writers on the same registry in fixed
+ * ratios; -tg scales both sides together.
+ *
+ * Every benchmark that changes the registry undoes its change in the same
+ * call, so the registry stays the size it was set up with however long the
+ * run: addAndDeleteTag deletes the tag it added (a registry that only grew
+ * would make each copy-on-write listTags snapshot more expensive than the
+ * last), and tagAndUntagFile removes the tag it added. Both of its calls
+ * therefore succeed, except when the file already had the tag, instead of
+ * turning into no-ops after warmup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TagBenchmarks {
+
+	private static final AtomicInteger threads = new AtomicInteger();
+
+	/**
+	 * Gives each benchmark thread its own tag name to add, so addTag never
+	 * fails on a name another thread already took
+	 */
+	@State(Scope.Thread)
+	public static class Names {
+		final String name = "new" + threads.getAndIncrement();
+	}
+
+	@Benchmark
+	public Object addAndDeleteTag(TagRegistryState state, Names names) throws Exception {
+		state.manager.addTag(names.name);
+		return state.manager.deleteTag(names.name);
+	}
+
+	@Benchmark
+	public boolean tagAndUntagFile(TagRegistryState state) throws Exception {
+		String file = state.randomFile();
+		String tag = state.randomTag();
+		return state.manager.tagFile(file, tag) && state.manager.removeTag(file, tag);// leave a tag the file already had
+	}
+
+	@Benchmark
+	public void listFilesByTag(TagRegistryState state, Blackhole bh) throws Exception {
+		for (Object file : state.manager.listFilesByTag(state.randomTag())) {
+			bh.consume(file);
+		}
+	}
+
+	@Benchmark
+	public void getTags(TagRegistryState state, Blackhole bh) throws Exception {
+		for (Object tag : state.manager.getTags(state.randomFile())) {
+			bh.consume(tag);
+		}
+	}
+
+	@Benchmark
+	@Group("readHeavy")
+	@GroupThreads(3)
+	public void readHeavyRead(TagRegistryState state, Blackhole bh) throws Exception {
+		getTags(state, bh);
+	}
+
+	@Benchmark
+	@Group("readHeavy")
+	@GroupThreads(1)
+	public boolean readHeavyWrite(TagRegistryState state) throws Exception {
+		return churn(state);
+	}
+
+	@Benchmark
+	@Group("balanced")
+	@GroupThreads(2)
+	public void balancedRead(TagRegistryState state, Blackhole bh) throws Exception {
+		getTags(state, bh);
+	}
+
+	@Benchmark
+	@Group("balanced")
+	@GroupThreads(2)
+	public boolean balancedWrite(TagRegistryState state) throws Exception {
+		return churn(state);
+	}
+
+	@Benchmark
+	@Group("writeHeavy")
+	@GroupThreads(1)
+	public void writeHeavyRead(TagRegistryState state, Blackhole bh) throws Exception {
+		getTags(state, bh);
+	}
+
+	@Benchmark
+	@Group("writeHeavy")
+	@GroupThreads(3)
+	public boolean writeHeavyWrite(TagRegistryState state) throws Exception {
+		return churn(state);
+	}
+
+	/**
+	 * Tags or untags a random file with equal odds, keeping the number of
+	 * tag assignments roughly constant
+	 */
+	private static boolean churn(TagRegistryState state) throws Exception {
+		if ((System.nanoTime() & 1) == 0) {
+			return state.manager.tagFile(state.randomFile(), state.randomTag());
+		}
+		return state.manager.removeTag(state.randomFile(), state.randomTag());
+	}
+}
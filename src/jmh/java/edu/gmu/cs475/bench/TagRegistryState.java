@@ -0,0 +1,69 @@
+package edu.gmu.cs475.bench;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import edu.gmu.cs475.FileTagManager;
+
+/**
+ * A FileTagManager holding only metadata: the files are made-up paths that
+ * never touch the disk, so registries of a million files are cheap to build.
+ * Every file starts with one of the tags, assigned round robin.
+ */
+@State(Scope.Benchmark)
+public class TagRegistryState {
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int files;
+
+	@Param({ "10", "100", "1000" })
+	public int tags;
+
+	public FileTagManager manager;
+	public String[] fileNames;
+	public String[] tagNames;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		manager = new FileTagManager();
+		List<Path> paths = new ArrayList<>(files);
+		fileNames = new String[files];
+		for (int i = 0; i < files; i++) {
+			Path path = Paths.get("/bench", "d" + (i % 1000), "f" + i);
+			paths.add(path);
+			fileNames[i] = path.toString();
+		}
+		manager.init(paths);
+
+		tagNames = new String[tags];
+		List<List<String>> byTag = new ArrayList<>(tags);
+		for (int t = 0; t < tags; t++) {
+			tagNames[t] = "t" + t;
+			manager.addTag(tagNames[t]);
+			byTag.add(new ArrayList<>());
+		}
+		for (int i = 0; i < files; i++) {
+			byTag.get(i % tags).add(fileNames[i]);
+		}
+		for (int t = 0; t < tags; t++) {
+			manager.tagFiles(byTag.get(t), tagNames[t]);
+		}
+	}
+
+	public String randomFile() {
+		return fileNames[ThreadLocalRandom.current().nextInt(fileNames.length)];
+	}
+
+	public String randomTag() {
+		return tagNames[ThreadLocalRandom.current().nextInt(tagNames.length)];
+	}
+}
@@ -0,0 +1,190 @@
+package edu.gmu.cs475.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Creates a synthetic directory tree to run the shell or a
+ * {@link WorkloadReplayer} against, and optionally a matching workload
+ * script.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar edu.gmu.cs475.bench.WorkloadGenerator \
+ *     --dir testdir/gen --files 100000 --depth 3 --fanout 20 \
+ *     --size lognormal:4096:1.5 --seed 1 \
+ *     --script workload.txt --ops 100000 --tags 200 --writes 0.1
+ * </pre>
+ *
+ * Sizes are one of <code>fixed:BYTES</code>, <code>uniform:MIN:MAX</code> or
+ * <code>lognormal:MEDIAN:SIGMA</code> (a few big files among many small ones,
+ * like most real trees). Files are spread evenly over the leaf directories
+ * of a tree with the given depth and fanout.
+ */
+public class WorkloadGenerator {
+
+	private final Random random;
+
+	public WorkloadGenerator(long seed) {
+		this.random = new Random(seed);
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> opts = parseArgs(args);
+		WorkloadGenerator generator = new WorkloadGenerator(Long.parseLong(opts.getOrDefault("seed", "1")));
+		Path dir = Paths.get(opts.getOrDefault("dir", "testdir/gen"));
+		List<Path> files = generator.createTree(dir, Integer.parseInt(opts.getOrDefault("files", "10000")),
+				Integer.parseInt(opts.getOrDefault("depth", "2")), Integer.parseInt(opts.getOrDefault("fanout", "10")),
+				opts.getOrDefault("size", "fixed:0"));
+		System.out.println("Created " + files.size() + " files under " + dir);
+		if (opts.containsKey("script")) {
+			Path script = Paths.get(opts.get("script"));
+			generator.writeScript(script, files, Integer.parseInt(opts.getOrDefault("ops", "10000")),
+					Integer.parseInt(opts.getOrDefault("tags", "100")), Double.parseDouble(opts.getOrDefault("writes", "0.1")));
+			System.out.println("Wrote workload to " + script);
+		}
+	}
+
+	/**
+	 * Creates the files of a tree
+	 *
+	 * @param dir
+	 *            Root of the tree; created if missing
+	 * @param files
+	 *            Number of files
+	 * @param depth
+	 *            Number of directory levels below the root
+	 * @param fanout
+	 *            Subdirectories per directory
+	 * @param sizes
+	 *            File size distribution, see the class comment
+	 * @return Paths of the created files
+	 * @throws IOException
+	 */
+	public List<Path> createTree(Path dir, int files, int depth, int fanout, String sizes) throws IOException {
+		List<Path> leaves = new ArrayList<>();
+		leaves.add(Files.createDirectories(dir));
+		for (int level = 0; level < depth; level++) {
+			List<Path> next = new ArrayList<>(leaves.size() * fanout);
+			for (Path parent : leaves) {
+				for (int i = 0; i < fanout; i++) {
+					next.add(Files.createDirectories(parent.resolve("d" + i)));
+				}
+			}
+			leaves = next;
+		}
+
+		List<Path> created = new ArrayList<>(files);
+		byte[] buffer = new byte[0];
+		for (int i = 0; i < files; i++) {
+			int size = nextSize(sizes);
+			if (buffer.length < size) {
+				buffer = new byte[Math.max(size, buffer.length * 2)];
+				for (int b = 0; b < buffer.length; b++) {
+					buffer[b] = (byte) ('a' + b % 26);
+				}
+			}
+			Path file = leaves.get(i % leaves.size()).resolve("f" + i + ".txt");
+			try (OutputStream out = Files.newOutputStream(file)) {
+				out.write(buffer, 0, size);
+			}
+			created.add(file);
+		}
+		return created;
+	}
+
+	/**
+	 * Writes a random workload script in the shell's command syntax: a setup
+	 * part that creates the tags and tags every file once, ended by
+	 * {@link WorkloadReplayer#SETUP_END}, then a mix of
+	 * reads (list-files, get-tags, query, cat-all) and writes (tag-file,
+	 * remove-tag, echo-all)
+	 *
+	 * @param script
+	 *            File to write
+	 * @param files
+	 *            Files the commands refer to
+	 * @param ops
+	 *            Number of commands after the warm-up
+	 * @param tags
+	 *            Number of distinct tags
+	 * @param writeRatio
+	 *            Fraction of the commands that change something
+	 * @throws IOException
+	 */
+	public void writeScript(Path script, List<Path> files, int ops, int tags, double writeRatio) throws IOException {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(script))) {
+			for (int t = 0; t < tags; t++) {
+				out.println("add-tag t" + t);
+			}
+			for (int i = 0; i < files.size(); i++) {
+				out.println("tag-file " + quote(files.get(i).toAbsolutePath().toString()) + " t" + (i % tags));
+			}
+			out.println(WorkloadReplayer.SETUP_END);
+			for (int i = 0; i < ops; i++) {
+				String file = quote(files.get(random.nextInt(files.size())).toAbsolutePath().toString());
+				String tag = "t" + random.nextInt(tags);
+				int kind = random.nextInt(100);
+				if (random.nextDouble() < writeRatio) {
+					if (kind < 45)
+						out.println("tag-file " + file + " " + tag);
+					else if (kind < 90)
+						out.println("remove-tag " + file + " " + tag);
+					else
+						out.println("echo-all " + tag + " " + quote("payload " + i));
+				} else {
+					if (kind < 40)
+						out.println("get-tags " + file);
+					else if (kind < 80)
+						out.println("list-files " + tag);
+					else if (kind < 95)
+						out.println("query " + quote(tag + " AND NOT t" + random.nextInt(tags)));
+					else
+						out.println("cat-all " + tag);
+				}
+			}
+		}
+	}
+
+	private int nextSize(String spec) {
+		String[] parts = spec.split(":");
+		switch (parts[0]) {
+		case "fixed":
+			return Integer.parseInt(parts[1]);
+		case "uniform":
+			int min = Integer.parseInt(parts[1]);
+			return min + random.nextInt(Integer.parseInt(parts[2]) - min + 1);
+		case "lognormal":
+			double median = Double.parseDouble(parts[1]);
+			double sigma = Double.parseDouble(parts[2]);
+			return (int) Math.min(Integer.MAX_VALUE - 8, median * Math.exp(sigma * random.nextGaussian()));
+		default:
+			throw new IllegalArgumentException("Unknown size distribution " + spec);
+		}
+	}
+
+	static String quote(String arg) {
+		return "\"" + arg.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/**
+	 * Parses <code>--name value</code> pairs
+	 */
+	static Map<String, String> parseArgs(String[] args) {
+		Map<String, String> opts = new HashMap<>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("--"))
+				throw new IllegalArgumentException("Expected --option, got " + args[i]);
+			opts.put(args[i].substring(2), args[i + 1]);
+		}
+		return opts;
+	}
+}
@@ -0,0 +1,371 @@
+package edu.gmu.cs475.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import edu.gmu.cs475.AbstractFileTagManager;
+import edu.gmu.cs475.FileTagManager;
+import edu.gmu.cs475.internal.Command;
+import edu.gmu.cs475.struct.ITag;
+import edu.gmu.cs475.struct.ITaggedFile;
+
+/**
+ * Replays a recorded sequence of shell commands against an
+ * AbstractFileTagManager and reports throughput and latency percentiles per
+ * command.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar edu.gmu.cs475.bench.WorkloadReplayer \
+ *     --script workload.txt --dir testdir/gen --threads 8 --rate 20000 \
+ *     [--impl edu.gmu.cs475.FileTagManager] [--warmup 10000]
+ * </pre>
+ *
+ * A script has one command per line, in the shell's syntax (e.g.
+ * <code>tag-file "testdir/a b.txt" prod</code>); blank lines and lines
+ * starting with # are skipped. The shell's own history file can be replayed
+ * as is: its <code>timestamp:</code> line prefixes are stripped.
+ *
+ * Commands before a {@value #SETUP_END} line, which WorkloadGenerator writes
+ * after the add-tag and tag-file commands that build its registry, are setup:
+ * they depend on each other, so they run first, in order on a single thread,
+ * and are not timed. --warmup then runs that many of the following commands,
+ * also untimed, before the measured part of the script.
+ *
+ * With a target rate, command i is due at start + i / rate, and its latency
+ * is counted from when it was due rather than from when a thread got to it.
+ * A replay that falls behind therefore shows up as high latency instead of
+ * silently lowering the offered load. Without a rate, commands run back to
+ * back.
+ */
+public class WorkloadReplayer {
+
+	/**
+	 * Ends the setup part of a script
+	 */
+	static final String SETUP_END = "# end of setup";
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList("add-tag", "edit-tag", "delete-tag", "tag-file", "remove-tag",
+			"tag-files", "remove-tags", "tags", "list-files", "query", "get-tags", "cat", "echo", "cat-all", "echo-all", "append-all", "cat-range", "tail"));
+
+	/**
+	 * One parsed line of the script
+	 */
+	static final class Op {
+		final String command;
+		final String[] args;
+
+		Op(String command, String[] args) {
+			this.command = command;
+			this.args = args;
+		}
+	}
+
+	private final AbstractFileTagManager manager;
+	private final List<Op> ops;
+
+	public WorkloadReplayer(AbstractFileTagManager manager, List<Op> ops) {
+		this.manager = manager;
+		this.ops = ops;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> opts = WorkloadGenerator.parseArgs(args);
+		List<String> lines = Files.readAllLines(Paths.get(opts.get("script")));
+		List<Op> ops = parse(lines);
+		int setup = setupLength(lines);
+		int warmup = Math.min(ops.size() - setup, Integer.parseInt(opts.getOrDefault("warmup", "0")));
+		int threads = Integer.parseInt(opts.getOrDefault("threads", "1"));
+
+		AbstractFileTagManager manager = (AbstractFileTagManager) Class
+				.forName(opts.getOrDefault("impl", "edu.gmu.cs475.FileTagManager")).getDeclaredConstructor().newInstance();
+		Path dir = Paths.get(opts.getOrDefault("dir", AbstractFileTagManager.BASEDIR.toString()));
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(dir)) {
+			files = walk.filter(Files::isRegularFile).map(Path::toAbsolutePath).collect(Collectors.toList());
+		}
+		manager.init(files);
+
+		WorkloadReplayer replayer = new WorkloadReplayer(manager, ops);
+		if (setup > 0) {
+			replayer.run(0, setup, 1, 0);
+		}
+		if (warmup > 0) {
+			replayer.run(setup, setup + warmup, threads, 0);
+		}
+		Report report = replayer.run(setup + warmup, ops.size(), threads, Double.parseDouble(opts.getOrDefault("rate", "0")));
+		report.print();
+	}
+
+	/**
+	 * Replays part of the script
+	 *
+	 * @param from
+	 *            Index of the first command
+	 * @param to
+	 *            Index after the last command
+	 * @param threads
+	 *            Number of threads issuing commands
+	 * @param rate
+	 *            Target commands per second, or 0 for as fast as possible
+	 * @return Per-command latencies
+	 * @throws Exception
+	 */
+	public Report run(int from, int to, int threads, double rate) throws Exception {
+		int n = to - from;
+		long[] latencies = new long[n];
+		boolean[] failed = new boolean[n];
+		AtomicInteger next = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		try {
+			List<Future<?>> workers = new ArrayList<>(threads);
+			for (int t = 0; t < threads; t++) {
+				workers.add(pool.submit(() -> {
+					int i;
+					while ((i = next.getAndIncrement()) < n) {
+						long due = rate > 0 ? start + (long) (i * 1e9 / rate) : System.nanoTime();
+						long wait = due - System.nanoTime();
+						if (wait > 0) {
+							LockSupport.parkNanos(wait);
+						}
+						failed[i] = !execute(ops.get(from + i));
+						latencies[i] = System.nanoTime() - due;
+					}
+				}));
+			}
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		Report report = new Report(elapsed, n);
+		for (int i = 0; i < n; i++) {
+			report.add(ops.get(from + i).command, latencies[i], failed[i]);
+		}
+		return report;
+	}
+
+	/**
+	 * Runs one command
+	 *
+	 * @return false if the command failed (unknown tag or file, tag already
+	 *         exists, ...), which is normal for a replayed workload
+	 */
+	private boolean execute(Op op) {
+		String[] a = op.args;
+		try {
+			switch (op.command) {
+			case "add-tag":
+				manager.addTag(a[0]);
+				return true;
+			case "edit-tag":
+				manager.editTag(a[0], a[1]);
+				return true;
+			case "delete-tag":
+				manager.deleteTag(a[0]);
+				return true;
+			case "tag-file":
+				return manager.tagFile(a[0], a[1]);
+			case "remove-tag":
+				return manager.removeTag(a[0], a[1]);
+			case "tag-files":// the files argument is read the same way as by the shell
+				if (Command.isPattern(a[0]))
+					manager.tagByPattern(a[0], a[1]);
+				else
+					manager.tagFiles(Command.splitFiles(a[0]), a[1]);
+				return true;
+			case "remove-tags":
+				manager.removeTags(Command.isPattern(a[0]) ? ((FileTagManager) manager).matchFiles(a[0]) : Command.splitFiles(a[0]), a[1]);
+				return true;
+			case "tags":
+				for (ITag tag : manager.listTags())
+					tag.getName();
+				return true;
+			case "list-files":
+				for (ITaggedFile file : manager.listFilesByTag(a[0]))
+					file.getName();
+				return true;
+			case "query":
+				for (ITaggedFile file : manager.listFilesByQuery(a[0]))
+					file.getName();
+				return true;
+			case "get-tags":
+				for (ITag tag : manager.getTags(a[0]))
+					tag.getName();
+				return true;
+			case "cat":
+				manager.readFile(a[0]);
+				return true;
+			case "echo":
+				manager.writeFile(a[0], a[1]);
+				return true;
+			case "cat-all":
+				manager.catAllFiles(a[0], new FileIoBenchmarks.DiscardChannel());
+				return true;
+			case "echo-all":
+				manager.echoToAllFiles(a[0], a[1]);
+				return true;
+			case "append-all":
+				manager.appendToAllFiles(a[0], a[1]);
+				return true;
+			case "cat-range":
+				manager.readFile(a[0], Long.parseLong(a[1]), Integer.parseInt(a[2]));
+				return true;
+			case "tail":
+				manager.tail(a[0], a.length > 1 ? Integer.parseInt(a[1]) : 10);
+				return true;
+			default:
+				return false;// parse only lets known commands through
+			}
+		} catch (IOException | RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Parses a script
+	 *
+	 * @param lines
+	 * @return The commands, in order
+	 */
+	static List<Op> parse(List<String> lines) {
+		List<Op> ops = new ArrayList<>(lines.size());
+		for (String line : lines) {
+			line = line.trim().replaceFirst("^\\d+:", "");// shell history timestamp
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			List<String> words = split(line);
+			List<String> args = new ArrayList<>();
+			for (int i = 1; i < words.size(); i++) {
+				String w = words.get(i);
+				if (w.startsWith("--") && i + 1 < words.size())
+					continue;// named parameter, e.g. --tag foo: keep only the value
+				args.add(w);
+			}
+			if (!COMMANDS.contains(words.get(0)))
+				throw new IllegalArgumentException("Unknown command in line: " + line);
+			ops.add(new Op(words.get(0), args.toArray(new String[args.size()])));
+		}
+		return ops;
+	}
+
+	/**
+	 * @param lines
+	 * @return Number of commands before the {@value #SETUP_END} line, or 0 if
+	 *         there is none
+	 */
+	static int setupLength(List<String> lines) {
+		int index = lines.indexOf(SETUP_END);
+		return index < 0 ? 0 : parse(lines.subList(0, index)).size();
+	}
+
+	private static List<String> split(String line) {
+		List<String> words = new ArrayList<>();
+		StringBuilder word = null;
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '\\' && i + 1 < line.length())
+					word.append(line.charAt(++i));
+				else if (c == '"')
+					quoted = false;
+				else
+					word.append(c);
+			} else if (c == '"') {
+				if (word == null)
+					word = new StringBuilder();
+				quoted = true;
+			} else if (Character.isWhitespace(c)) {
+				if (word != null)
+					words.add(word.toString());
+				word = null;
+			} else {
+				if (word == null)
+					word = new StringBuilder();
+				word.append(c);
+			}
+		}
+		if (word != null)
+			words.add(word.toString());
+		return words;
+	}
+
+	/**
+	 * Latencies of a replay, grouped by command
+	 */
+	public static final class Report {
+		private final long elapsedNanos;
+		private final int count;
+		private final Map<String, List<Long>> byCommand = new TreeMap<>();
+		private final Map<String, Integer> failures = new TreeMap<>();
+
+		Report(long elapsedNanos, int count) {
+			this.elapsedNanos = elapsedNanos;
+			this.count = count;
+		}
+
+		void add(String command, long latency, boolean failed) {
+			byCommand.computeIfAbsent(command, c -> new ArrayList<>()).add(latency);
+			if (failed)
+				failures.merge(command, 1, Integer::sum);
+		}
+
+		public double getThroughput() {
+			return count / (elapsedNanos / 1e9);
+		}
+
+		public void print() {
+			System.out.printf("%d commands in %.2f s: %.0f ops/s%n", count, elapsedNanos / 1e9, getThroughput());
+			System.out.printf("%-12s %9s %7s %10s %10s %10s %10s %10s%n", "command", "count", "failed", "p50 us", "p90 us", "p99 us",
+					"p99.9 us", "max us");
+			List<Long> all = new ArrayList<>(count);
+			for (Map.Entry<String, List<Long>> e : byCommand.entrySet()) {
+				printRow(e.getKey(), e.getValue(), failures.getOrDefault(e.getKey(), 0));
+				all.addAll(e.getValue());
+			}
+			int failed = 0;
+			for (int f : failures.values())
+				failed += f;
+			printRow("all", all, failed);
+		}
+
+		private static void printRow(String name, List<Long> latencies, int failed) {
+			long[] sorted = new long[latencies.size()];
+			for (int i = 0; i < sorted.length; i++)
+				sorted[i] = latencies.get(i);
+			Arrays.sort(sorted);
+			System.out.printf("%-12s %9d %7d", name, sorted.length, failed);
+			for (double p : PERCENTILES)
+				System.out.printf(" %10.1f", percentile(sorted, p) / 1e3);
+			System.out.printf(" %10.1f%n", sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e3);
+		}
+
+		private static long percentile(long[] sorted, double p) {
+			if (sorted.length == 0)
+				return 0;
+			int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+		}
+	}
+}
@@ -1,17 +1,24 @@
 package edu.gmu.cs475;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import edu.gmu.cs475.struct.ITag;
 import edu.gmu.cs475.struct.ITaggedFile;
 import edu.gmu.cs475.struct.NoSuchTagException;
 import edu.gmu.cs475.struct.TagExistsException;
+import edu.gmu.cs475.struct.TagOutcome;
 
 public abstract class AbstractFileTagManager {
 
@@ -93,6 +100,22 @@ public abstract class AbstractFileTagManager {
 	 */
 	public abstract Iterable<? extends ITaggedFile> listFilesByTag(String tag) throws NoSuchTagException;
 
+	/**
+	 * List all files matching a boolean expression over tags, e.g.
+	 * <code>prod AND errors AND NOT archived</code>. AND binds tighter than
+	 * OR; parentheses group, and a tag name that contains spaces or is itself
+	 * AND/OR/NOT can be written in double quotes.
+	 * 
+	 * @param query
+	 *            Expression to evaluate
+	 * @return A list of all files matching the expression
+	 * @throws NoSuchTagException
+	 *             If the expression names a tag that doesn't exist
+	 * @throws IllegalArgumentException
+	 *             If the expression is malformed
+	 */
+	public abstract Iterable<? extends ITaggedFile> listFilesByQuery(String query) throws NoSuchTagException;
+
 	/**
 	 * Label a file with a tag
 	 * 
@@ -139,6 +162,61 @@ public abstract class AbstractFileTagManager {
 	 */
 	public abstract boolean removeTag(String file, String tag) throws NoSuchFileException, NoSuchTagException;
 
+	/**
+	 * Label many files with a tag at once. Has the same effect as calling
+	 * tagFile on each file, but every file is resolved and tagged in a single
+	 * critical section.
+	 * 
+	 * @param files
+	 *            Paths to files to tag
+	 * @param tag
+	 *            The desired tag
+	 * @return For each distinct file, in the order given: CHANGED if it was
+	 *         tagged, UNCHANGED if it already had that tag, NO_SUCH_FILE if no
+	 *         file exists with that name/path
+	 * @throws NoSuchTagException
+	 *             If no tag exists with the given name
+	 */
+	public abstract Map<String, TagOutcome> tagFiles(Collection<String> files, String tag) throws NoSuchTagException;
+
+	/**
+	 * Remove a tag from many files at once. Has the same effect as calling
+	 * removeTag on each file, but every file is resolved and untagged in a
+	 * single critical section.
+	 * 
+	 * @param files
+	 *            Paths to files to untag
+	 * @param tag
+	 *            The desired tag to remove from those files
+	 * @return For each distinct file, in the order given: CHANGED if the tag
+	 *         was removed, UNCHANGED if the file didn't have it, NO_SUCH_FILE
+	 *         if no file exists with that name/path
+	 * @throws NoSuchTagException
+	 *             If no tag exists with the given name
+	 */
+	public abstract Map<String, TagOutcome> removeTags(Collection<String> files, String tag) throws NoSuchTagException;
+
+	/**
+	 * Label every file whose path matches a pattern with a tag, as one
+	 * tagFiles batch
+	 * 
+	 * @param pattern
+	 *            A glob such as <code>testdir/logs/**.gz</code>, or
+	 *            "glob:"/"regex:" followed by a pattern. Relative globs are
+	 *            resolved against the working directory; a regex is matched
+	 *            against the whole absolute path.
+	 * @param tag
+	 *            The desired tag
+	 * @return For each matching file: CHANGED if it was tagged, UNCHANGED if
+	 *         it already had that tag (or NO_SUCH_FILE if it was removed while
+	 *         tagging)
+	 * @throws NoSuchTagException
+	 *             If no tag exists with the given name
+	 * @throws IllegalArgumentException
+	 *             If the pattern is malformed
+	 */
+	public abstract Map<String, TagOutcome> tagByPattern(String pattern, String tag) throws NoSuchTagException;
+
 	/**
 	 * List all of the tags that are applied to a file
 	 * 
@@ -161,7 +239,78 @@ public abstract class AbstractFileTagManager {
 	 *             if any IOException occurs in the underlying read
 	 */
 	public final String readFile(String file) throws IOException {
-		return new String(Files.readAllBytes(Paths.get(file)));
+		return new String(readBytes(Paths.get(file)));
+	}
+
+	/**
+	 * Returns a file's content without decoding it. Files of at least
+	 * {@link #MAP_THRESHOLD} bytes are copied into a direct buffer, outside
+	 * the heap, instead of a byte[].
+	 * 
+	 * The buffer is a copy, not a mapping of the file, so it stays readable
+	 * whatever happens to the file afterwards.
+	 * 
+	 * @param file
+	 *            Path to file requested
+	 * @return A read-only buffer holding the whole file
+	 * @throws IOException
+	 *             if any IOException occurs in the underlying read, or the
+	 *             file is too large for one buffer (2GB); read those with
+	 *             {@link #readFile(String, WritableByteChannel)}
+	 */
+	public ByteBuffer readFileBuffer(String file) throws IOException {
+		Path path = Paths.get(file);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < MAP_THRESHOLD) {
+				return ByteBuffer.wrap(readBytes(path)).asReadOnlyBuffer();
+			}
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to read into one buffer");
+			}
+			ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+			while (content.hasRemaining() && channel.read(content, content.position()) >= 0) {
+			}
+			content.flip();
+			return content.asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Streams a file into a channel, letting the OS move the bytes where it
+	 * can, so a file of any size is copied without buffering it in memory.
+	 * 
+	 * @param file
+	 *            Path to file requested
+	 * @param out
+	 *            Channel to write the file's content to
+	 * @return The number of bytes written
+	 * @throws IOException
+	 *             if any IOException occurs in the underlying read or write
+	 */
+	public long readFile(String file, WritableByteChannel out) throws IOException {
+		try (FileChannel in = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+			long size = in.size();
+			long position = 0;
+			while (position < size) {// transferTo may move fewer bytes than asked
+				position += in.transferTo(position, size - position, out);
+			}
+			return position;
+		}
+	}
+
+	/**
+	 * Reads a whole file for {@link #readFile(String)}. Subclasses may serve
+	 * it from a cache.
+	 * 
+	 * @param path
+	 *            Path to file requested
+	 * @return The file's content
+	 * @throws IOException
+	 *             if any IOException occurs in the underlying read
+	 */
+	protected byte[] readBytes(Path path) throws IOException {
+		return Files.readAllBytes(path);
 	}
 
 	/**
@@ -176,9 +325,35 @@ public abstract class AbstractFileTagManager {
 	 */
 	public final void writeFile(String file, String content) throws IOException {
 		Path path = Paths.get(file);
+		checkWritable(path);
+		try {
+			Files.write(path, content.getBytes());
+		} finally {
+			afterWrite(path);
+		}
+	}
+
+	/**
+	 * Called once {@link #writeFile(String, String)} is done with a file,
+	 * whether or not the write succeeded, e.g. to drop cached content.
+	 * 
+	 * @param path
+	 *            Path to file written
+	 */
+	protected void afterWrite(Path path) {
+	}
+
+	/**
+	 * Checks that a file may be written to
+	 * 
+	 * @param path
+	 *            Path to file to write out
+	 * @throws IOException
+	 *             if the file is outside of {@link #BASEDIR}
+	 */
+	protected static void checkWritable(Path path) throws IOException {
 		if (!path.startsWith(BASEDIR))
 			throw new IOException("Can only write to files in " + BASEDIR);
-		Files.write(path, content.getBytes());
 	}
 
 	/**
@@ -200,6 +375,24 @@ public abstract class AbstractFileTagManager {
 	 */
 	public abstract String catAllFiles(String tag) throws NoSuchTagException, IOException;
 
+	/**
+	 * Streams all files that have a given tag into a channel, one after the
+	 * other. Provides the same synchronization guarantees as
+	 * {@link #catAllFiles(String)}, but never holds more than a transfer
+	 * buffer of file content in memory.
+	 * 
+	 * @param tag
+	 *            Tag to query for
+	 * @param out
+	 *            Channel to write the concatenation of all of the files to
+	 * @return The total number of bytes written
+	 * @throws NoSuchTagException
+	 *             If no tag exists with the given name
+	 * @throws IOException
+	 *             if any IOException occurs in the underlying read or write
+	 */
+	public abstract long catAllFiles(String tag, WritableByteChannel out) throws NoSuchTagException, IOException;
+
 	/**
 	 * Echos some content into all files that have a given tag. Must internally
 	 * synchronize to guarantee that the list of files with the given tag does
@@ -224,6 +417,54 @@ public abstract class AbstractFileTagManager {
 	 */
 	public abstract void echoToAllFiles(String tag, String content) throws NoSuchTagException, IOException;
 
+	/**
+	 * Appends some content to the end of all files that have a given tag,
+	 * without rewriting what is already there. Provides the same
+	 * synchronization guarantees as {@link #echoToAllFiles(String, String)}:
+	 * concurrent appends to the same files land in the same order in every
+	 * file.
+	 * 
+	 * @param tag
+	 *            Tag to query for
+	 * @param content
+	 *            The content to append to each file
+	 * @throws NoSuchTagException
+	 *             If no tag exists with the given name
+	 * @throws IOException
+	 *             if any IOException occurs in the underlying write
+	 */
+	public abstract void appendToAllFiles(String tag, String content) throws NoSuchTagException, IOException;
+
+	/**
+	 * Reads part of a file, holding the file's read lock if it is a known
+	 * file
+	 * 
+	 * @param file
+	 *            Path to file requested
+	 * @param offset
+	 *            Position of the first byte to read
+	 * @param length
+	 *            Most bytes to read; fewer are returned at the end of the file
+	 * @return String representing that part of the file
+	 * @throws IOException
+	 *             if any IOException occurs in the underlying read
+	 */
+	public abstract String readFile(String file, long offset, int length) throws IOException;
+
+	/**
+	 * Reads the last lines of a file, holding the file's read lock if it is a
+	 * known file. Only the end of the file is read.
+	 * 
+	 * @param file
+	 *            Path to file requested
+	 * @param lines
+	 *            Number of lines to return
+	 * @return String representing the last lines of the file
+	 * @throws IOException
+	 *             if any IOException occurs in the underlying read
+	 */
+	public abstract String tail(String file, int lines) throws IOException;
+
 	/**
 	 * Acquires a read or write lock for a given file.
 	 * 
@@ -253,4 +494,11 @@ public abstract class AbstractFileTagManager {
 
 	public static final Path BASEDIR = Paths.get(System.getProperty("user.dir"), "testdir");
 
+	/**
+	 * Files at least this large are read off the heap by
+	 * {@link #readFileBuffer(String)}, and memory mapped while their locks
+	 * are held by catAllFiles
+	 */
+	public static final long MAP_THRESHOLD = 1 << 20;
+
 }
@@ -0,0 +1,426 @@
+package edu.gmu.cs475;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import edu.gmu.cs475.struct.ITag;
+import edu.gmu.cs475.struct.ITaggedFile;
+import edu.gmu.cs475.struct.TagOutcome;
+
+/**
+ * A non-blocking front for a FileTagManager: every operation returns at
+ * once with a CompletableFuture, and runs on an executor.
+ *
+ * catAllFiles and echoToAllFiles only use the executor to acquire their
+ * locks. Their file I/O then goes through AsynchronousFileChannels, and the
+ * locks are released from the completion of the last read or write, so
+ * outstanding calls don't each hold a thread while their I/O is in flight.
+ * That I/O runs on the JVM's default asynchronous channel group rather than
+ * on this executor, so it can always finish and release its locks even when
+ * every executor thread is waiting for them.
+ */
+public class AsyncFileTagManager implements AutoCloseable {
+
+	private final FileTagManager manager;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+
+	/**
+	 * Runs operations on virtual threads if the JVM has them, otherwise on a
+	 * growing pool of daemon threads. {@link #close()} shuts it down.
+	 *
+	 * @param manager
+	 */
+	public AsyncFileTagManager(FileTagManager manager) {
+		this(manager, newDefaultExecutor(), true);
+	}
+
+	/**
+	 * @param manager
+	 * @param executor
+	 *            Runs the operations; left running by {@link #close()}
+	 */
+	public AsyncFileTagManager(FileTagManager manager, ExecutorService executor) {
+		this(manager, executor, false);
+	}
+
+	private AsyncFileTagManager(FileTagManager manager, ExecutorService executor, boolean ownsExecutor) {
+		this.manager = manager;
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+	}
+
+	/**
+	 * @return A virtual-thread-per-task executor on Java 21 and later, else a
+	 *         cached pool of daemon threads
+	 */
+	public static ExecutorService newDefaultExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "AsyncFileTagManager");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	public FileTagManager getManager() {
+		return manager;
+	}
+
+	public CompletableFuture<Iterable<? extends ITag>> listTags() {
+		return supply(manager::listTags);
+	}
+
+	public CompletableFuture<ITag> addTag(String name) {
+		return supply(() -> manager.addTag(name));
+	}
+
+	public CompletableFuture<ITag> editTag(String oldTagName, String newTagName) {
+		return supply(() -> manager.editTag(oldTagName, newTagName));
+	}
+
+	public CompletableFuture<ITag> deleteTag(String tagName) {
+		return supply(() -> manager.deleteTag(tagName));
+	}
+
+	public CompletableFuture<Void> init(List<Path> files) {
+		return run(() -> manager.init(files));
+	}
+
+	public CompletableFuture<Iterable<? extends ITaggedFile>> listAllFiles() {
+		return supply(manager::listAllFiles);
+	}
+
+	public CompletableFuture<Iterable<? extends ITaggedFile>> listFilesByTag(String tag) {
+		return supply(() -> manager.listFilesByTag(tag));
+	}
+
+	public CompletableFuture<Iterable<? extends ITaggedFile>> listFilesByQuery(String query) {
+		return supply(() -> manager.listFilesByQuery(query));
+	}
+
+	public CompletableFuture<Boolean> tagFile(String file, String tag) {
+		return supply(() -> manager.tagFile(file, tag));
+	}
+
+	public CompletableFuture<Boolean> removeTag(String file, String tag) {
+		return supply(() -> manager.removeTag(file, tag));
+	}
+
+	public CompletableFuture<Map<String, TagOutcome>> tagFiles(Collection<String> files, String tag) {
+		return supply(() -> manager.tagFiles(files, tag));
+	}
+
+	public CompletableFuture<Map<String, TagOutcome>> removeTags(Collection<String> files, String tag) {
+		return supply(() -> manager.removeTags(files, tag));
+	}
+
+	public CompletableFuture<Map<String, TagOutcome>> tagByPattern(String pattern, String tag) {
+		return supply(() -> manager.tagByPattern(pattern, tag));
+	}
+
+	public CompletableFuture<Iterable<? extends ITag>> getTags(String file) {
+		return supply(() -> manager.getTags(file));
+	}
+
+	public CompletableFuture<String> readFile(String file) {
+		return supply(() -> manager.readFile(file));
+	}
+
+	public CompletableFuture<ByteBuffer> readFileBuffer(String file) {
+		return supply(() -> manager.readFileBuffer(file));
+	}
+
+	public CompletableFuture<Long> readFile(String file, WritableByteChannel out) {
+		return supply(() -> manager.readFile(file, out));
+	}
+
+	public CompletableFuture<String> readFile(String file, long offset, int length) {
+		return supply(() -> manager.readFile(file, offset, length));
+	}
+
+	public CompletableFuture<String> tail(String file, int lines) {
+		return supply(() -> manager.tail(file, lines));
+	}
+
+	public CompletableFuture<Void> writeFile(String file, String content) {
+		return run(() -> manager.writeFile(file, content));
+	}
+
+	/**
+	 * Like {@link FileTagManager#catAllFiles(String)}, with every file read
+	 * concurrently through an AsynchronousFileChannel
+	 *
+	 * @param tag
+	 * @return The concatenation of all of the files, in the same order
+	 */
+	public CompletableFuture<String> catAllFiles(String tag) {
+		return supply(() -> manager.lockTag(tag, false)).thenCompose(lock -> {
+			List<CompletableFuture<byte[]>> reads = new ArrayList<>(lock.getFiles().size());
+			for (TaggedFile file : lock.getFiles()) {
+				reads.add(readAsync(Paths.get(file.getName())));
+			}
+			return allThenRelease(reads, lock).thenApply(contents -> {
+				int size = 0;
+				for (byte[] content : contents) {
+					size += content.length;
+				}
+				byte[] all = new byte[size];
+				int offset = 0;
+				for (byte[] content : contents) {
+					System.arraycopy(content, 0, all, offset, content.length);
+					offset += content.length;
+				}
+				manager.getStats().addBytesRead(size);
+				return new String(all);
+			});
+		});
+	}
+
+	public CompletableFuture<Long> catAllFiles(String tag, WritableByteChannel out) {
+		return supply(() -> manager.catAllFiles(tag, out));
+	}
+
+	/**
+	 * Like {@link FileTagManager#echoToAllFiles(String, String)}, with every
+	 * file written concurrently through an AsynchronousFileChannel. When the
+	 * manager is in atomic echo mode, its own echoToAllFiles is run on the
+	 * executor instead.
+	 *
+	 * @param tag
+	 * @param content
+	 * @return Completes once every file was written
+	 */
+	public CompletableFuture<Void> echoToAllFiles(String tag, String content) {
+		if (manager.isAtomicEcho()) {
+			return run(() -> manager.echoToAllFiles(tag, content));
+		}
+		byte[] bytes = content.getBytes();
+		ByteBuffer payload = ByteBuffer.allocateDirect(bytes.length);
+		payload.put(bytes).flip();
+		return supply(() -> {
+			TagLock lock = manager.lockTag(tag, true);
+			try {
+				for (TaggedFile file : lock.getFiles()) {
+					AbstractFileTagManager.checkWritable(Paths.get(file.getName()));
+				}
+			} catch (IOException | RuntimeException e) {
+				lock.close();
+				throw e;
+			}
+			return lock;
+		}).thenCompose(lock -> {
+			List<Path> targets = new ArrayList<>(lock.getFiles().size());
+			List<CompletableFuture<Void>> writes = new ArrayList<>(targets.size());
+			for (TaggedFile file : lock.getFiles()) {
+				Path target = Paths.get(file.getName());
+				targets.add(target);
+				writes.add(writeAsync(target, payload.duplicate()));
+			}
+			return allThenRelease(writes, () -> {
+				for (Path target : targets) {
+					manager.afterWrite(target);//even a failed echo may have changed some files
+				}
+				lock.close();
+			}).thenApply(done -> {
+				manager.getStats().addBytesWritten((long) bytes.length * targets.size());
+				return null;
+			});
+		});
+	}
+
+	public CompletableFuture<Void> appendToAllFiles(String tag, String content) {
+		return run(() -> manager.appendToAllFiles(tag, content));
+	}
+
+	public CompletableFuture<Long> lockFile(String name, boolean forWrite) {
+		return supply(() -> manager.lockFile(name, forWrite));
+	}
+
+	public CompletableFuture<Void> unLockFile(String name, long stamp, boolean forWrite) {
+		return run(() -> manager.unLockFile(name, stamp, forWrite));
+	}
+
+	/**
+	 * Shuts down the executor if this object created it. Operations already
+	 * submitted still complete.
+	 */
+	@Override
+	public void close() {
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * A blocking operation without a result
+	 */
+	private interface Action {
+		void run() throws Exception;
+	}
+
+	private CompletableFuture<Void> run(Action action) {
+		return supply(() -> {
+			action.run();
+			return null;
+		});
+	}
+
+	/**
+	 * Runs a blocking call on the executor. Its exception, if any, fails the
+	 * future as is (not wrapped).
+	 */
+	private <T> CompletableFuture<T> supply(Callable<T> call) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(call.call());
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Waits for every one of a set of futures, even once one has failed, then
+	 * runs the release action, and only then completes: with every result in
+	 * order, or with the first failure
+	 */
+	private static <T> CompletableFuture<List<T>> allThenRelease(List<CompletableFuture<T>> futures, AutoCloseable release) {
+		CompletableFuture<List<T>> result = new CompletableFuture<>();
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).whenComplete((done, failure) -> {
+			try {
+				release.close();
+			} catch (Throwable t) {
+				failure = failure == null ? t : failure;
+			}
+			if (failure != null) {
+				result.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+				return;
+			}
+			List<T> values = new ArrayList<>(futures.size());
+			for (CompletableFuture<T> future : futures) {
+				values.add(future.join());
+			}
+			result.complete(values);
+		});
+		return result;
+	}
+
+	/**
+	 * Reads a whole file through an AsynchronousFileChannel. Never throws;
+	 * failures, including failing to open the file, complete the future.
+	 */
+	private static CompletableFuture<byte[]> readAsync(Path path) {
+		CompletableFuture<byte[]> future = new CompletableFuture<>();
+		AsynchronousFileChannel channel;
+		ByteBuffer buffer;
+		try {
+			channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+		} catch (IOException | RuntimeException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE - 8) {
+				throw new IOException(path + " is too large to read into memory");
+			}
+			buffer = ByteBuffer.allocate((int) size);
+		} catch (IOException | RuntimeException e) {
+			closeQuietly(channel);
+			future.completeExceptionally(e);
+			return future;
+		}
+		channel.read(buffer, 0, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer read, Void attachment) {
+				if (read >= 0 && buffer.hasRemaining()) {
+					channel.read(buffer, buffer.position(), null, this);
+					return;
+				}
+				closeQuietly(channel);
+				future.complete(Arrays.copyOf(buffer.array(), buffer.position()));//shorter if the file shrank
+			}
+
+			@Override
+			public void failed(Throwable e, Void attachment) {
+				closeQuietly(channel);
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Overwrites a file with the remaining bytes of a buffer through an
+	 * AsynchronousFileChannel. Never throws.
+	 */
+	private static CompletableFuture<Void> writeAsync(Path path, ByteBuffer content) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		AsynchronousFileChannel channel;
+		try {
+			channel = AsynchronousFileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+		} catch (IOException | RuntimeException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		CompletionHandler<Integer, Void> handler = new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer written, Void attachment) {
+				if (content.hasRemaining()) {
+					channel.write(content, content.position(), null, this);
+					return;
+				}
+				closeQuietly(channel);
+				future.complete(null);
+			}
+
+			@Override
+			public void failed(Throwable e, Void attachment) {
+				closeQuietly(channel);
+				future.completeExceptionally(e);
+			}
+		};
+		if (content.hasRemaining()) {
+			channel.write(content, 0, null, handler);
+		} else {
+			handler.completed(0, null);
+		}
+		return future;
+	}
+
+	private static void closeQuietly(AsynchronousFileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// the operation itself already succeeded or failed
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package edu.gmu.cs475;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An LRU cache of file contents, bounded by the total number of bytes it
+ * holds. Contents are kept in direct buffers, outside the Java heap, so a
+ * large cache adds nothing for the garbage collector to trace or copy.
+ *
+ * An entry is only used while the file's modification time and size are
+ * still what they were when it was read, so changes made outside of this
+ * process are picked up on the next read. Writes made through the manager
+ * call {@link #invalidate(Path)}, which also covers a rewrite that keeps the
+ * same size within the file system's timestamp resolution.
+ *
+ * The memory of an evicted entry is returned when the garbage collector
+ * reclaims its buffer, so the JVM's direct memory limit
+ * (-XX:MaxDirectMemorySize) should leave some room above the capacity.
+ */
+public class ContentCache {
+
+	private static final class Entry {
+		final FileTime modified;
+		final long size;
+		final ByteBuffer content;
+
+		Entry(FileTime modified, ByteBuffer content) {
+			this.modified = modified;
+			this.size = content.capacity();
+			this.content = content;
+		}
+
+		boolean matches(BasicFileAttributes attrs) {
+			return size == attrs.size() && modified.equals(attrs.lastModifiedTime());
+		}
+	}
+
+	private final long capacity;
+	private final long maxEntryBytes;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);// access order, eldest first
+	private long used;// guarded by this
+	private long invalidations;// guarded by this; a read that overlapped one does not fill the cache
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param capacity
+	 *            Most bytes of content held at once. Files larger than an
+	 *            eighth of this are never cached, so one big read can't
+	 *            flush everything else.
+	 */
+	public ContentCache(long capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.capacity = capacity;
+		this.maxEntryBytes = Math.max(1, capacity / 8);
+	}
+
+	/**
+	 * @param size
+	 *            The file's current size
+	 * @return true if a file of this size may be kept in the cache
+	 */
+	public boolean isCacheable(long size) {
+		return size <= maxEntryBytes;
+	}
+
+	/**
+	 * Returns a file's content, from the cache if the cached copy is still
+	 * current, otherwise from disk (caching it if it is small enough)
+	 *
+	 * @param path
+	 * @return The whole content, as a buffer the caller may read but not
+	 *         modify
+	 * @throws IOException
+	 */
+	public ByteBuffer read(Path path) throws IOException {
+		String key = path.toString();
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		long seen;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.matches(attrs)) {
+				hits.increment();
+				return entry.content.asReadOnlyBuffer();
+			}
+			seen = invalidations;
+		}
+		misses.increment();
+		byte[] bytes = Files.readAllBytes(path);
+		if (bytes.length == attrs.size() && isCacheable(bytes.length)) {
+			ByteBuffer content = ByteBuffer.allocateDirect(bytes.length);
+			content.put(bytes).flip();
+			put(key, seen, new Entry(attrs.lastModifiedTime(), content));
+		}
+		return ByteBuffer.wrap(bytes);
+	}
+
+	private synchronized void put(String key, long seen, Entry entry) {
+		if (seen != invalidations) {
+			return;// the file may have changed while it was read
+		}
+		Entry old = entries.put(key, entry);
+		if (old != null) {
+			used -= old.size;
+		}
+		used += entry.size;
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while (used > capacity && eldest.hasNext()) {
+			Entry evicted = eldest.next().getValue();
+			eldest.remove();
+			used -= evicted.size;
+		}
+	}
+
+	/**
+	 * Drops a file's cached content. Called after writing to it.
+	 *
+	 * @param path
+	 */
+	public synchronized void invalidate(Path path) {
+		invalidations++;
+		Entry old = entries.remove(path.toString());
+		if (old != null) {
+			used -= old.size;
+		}
+	}
+
+	public synchronized void clear() {
+		invalidations++;
+		entries.clear();
+		used = 0;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getUsedBytes() {
+		return used;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+}
@@ -0,0 +1,109 @@
+package edu.gmu.cs475;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The content locks for a whole set of files, held together.
+ * 
+ * Locks are always acquired in ascending file id order. Since every caller
+ * agrees on that order, two callers locking overlapping sets of files (e.g.
+ * catAll and echoAll on tags that share files) can never wait on each other
+ * in a cycle.
+ */
+public class FileLockSet implements AutoCloseable {
+
+	private final List<TaggedFile> files;
+	private final long[] stamps;
+	private final boolean forWrite;
+	private int held;
+
+	private FileLockSet(List<TaggedFile> files, boolean forWrite) {
+		this.files = files;
+		this.stamps = new long[files.size()];
+		this.forWrite = forWrite;
+	}
+
+	/**
+	 * Acquires the read or write lock of every file, blocking until all of
+	 * them are held.
+	 * 
+	 * @param files
+	 *            Files to lock, in any order (duplicates are ignored)
+	 * @param forWrite
+	 *            True if write locks are requested, else false
+	 * @return The held locks, to be released with {@link #close()}
+	 */
+	public static FileLockSet acquire(Collection<TaggedFile> files, boolean forWrite) {
+		return acquire(files, forWrite, null);
+	}
+
+	/**
+	 * Like {@link #acquire(Collection, boolean)}, also recording how long it
+	 * waited for the locks
+	 * 
+	 * @param files
+	 *            Files to lock, in any order (duplicates are ignored)
+	 * @param forWrite
+	 *            True if write locks are requested, else false
+	 * @param waits
+	 *            Receives the time from the first lock request until every
+	 *            lock is held, or null
+	 * @return The held locks, to be released with {@link #close()}
+	 */
+	public static FileLockSet acquire(Collection<TaggedFile> files, boolean forWrite, LatencyHistogram waits) {
+		List<TaggedFile> ordered = new ArrayList<>(files);
+		ordered.sort(Comparator.comparingInt(TaggedFile::getId));
+		for (int i = ordered.size() - 1; i > 0; i--) {
+			if (ordered.get(i) == ordered.get(i - 1)) {
+				ordered.remove(i);
+			} // StampedLock is not reentrant, never lock the same file twice
+		}
+
+		FileLockSet set = new FileLockSet(ordered, forWrite);
+		long start = waits == null ? 0 : System.nanoTime();
+		try {
+			for (TaggedFile file : ordered) {
+				StampedLock lock = file.getLock();
+				set.stamps[set.held] = forWrite ? lock.writeLock() : lock.readLock();
+				set.held++;
+			}
+		} catch (RuntimeException | Error e) {
+			set.close();
+			throw e;
+		}
+		if (waits != null)
+			waits.recordSince(start);
+		return set;
+	}
+
+	/**
+	 * @return The locked files, in lock order
+	 */
+	public List<TaggedFile> getFiles() {
+		return files;
+	}
+
+	public boolean isForWrite() {
+		return forWrite;
+	}
+
+	/**
+	 * Releases every held lock, in the reverse order of acquisition
+	 */
+	@Override
+	public void close() {
+		while (held > 0) {
+			held--;
+			StampedLock lock = files.get(held).getLock();
+			if (forWrite) {
+				lock.unlockWrite(stamps[held]);
+			} else {
+				lock.unlockRead(stamps[held]);
+			}
+		}
+	}
+}
@@ -1,23 +1,52 @@
 package edu.gmu.cs475;
 
 import static edu.gmu.cs475.AbstractFileTagManager.BASEDIR;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileSystem;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.util.List;
 
 import edu.gmu.cs475.struct.ITag;
 import edu.gmu.cs475.struct.ITaggedFile;
 import edu.gmu.cs475.struct.NoSuchTagException;
 import edu.gmu.cs475.struct.TagExistsException;
+import edu.gmu.cs475.struct.TagOutcome;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.util.ArrayList;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.StampedLock;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 /*
@@ -26,386 +55,1550 @@ import java.util.concurrent.locks.StampedLock;
 */
 public class FileTagManager extends AbstractFileTagManager {
 
-	List<Tag> tags = new ArrayList<>();
-	List<TaggedFile> taggedFiles = new ArrayList<>();// list of tagged files
-        private final StampedLock lock = new StampedLock();
-        private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-        private final Lock readLock = readWriteLock.readLock();
-        private final Lock writeLock = readWriteLock.writeLock();
+	/**
+	 * Suffix of the temporary files written by echoToAllFiles in atomic mode
+	 */
+	public static final String ECHO_TEMP_SUFFIX = ".echo";
 
+	/**
+	 * Pattern matches with at least this many candidate paths are tested in
+	 * parallel
+	 */
+	public static final int PARALLEL_MATCH_THRESHOLD = 10000;
+
+	Map<String, Tag> tags = new ConcurrentHashMap<>();// tag name -> tag
+	Map<String, TaggedFile> taggedFiles = new ConcurrentHashMap<>();// file path -> tagged file
+	// Same files sorted by path, so a pattern only scans the paths under its literal prefix
+	private final ConcurrentSkipListMap<String, TaggedFile> pathIndex = new ConcurrentSkipListMap<>();
+	// Immutable copies of the registry for listTags/listAllFiles; writers copy, readers never lock
+	private final AtomicReference<List<Tag>> tagSnapshot = new AtomicReference<>(Collections.emptyList());
+	private final AtomicReference<List<TaggedFile>> fileSnapshot = new AtomicReference<>(Collections.emptyList());
+	private final AtomicInteger nextFileId = new AtomicInteger();
+	private final AtomicInteger nextTagId = new AtomicInteger();
+	private TaggedFile[] filesById = new TaggedFile[16];// file id -> file, written with every stripe held
+	private volatile Tag[] tagsById = new Tag[16];// tag id -> tag, written under tagIdLock
+	private final Object tagIdLock = new Object();
+	private final BitSet liveFileIds = new BitSet();// ids of every known file, written with every stripe held
+	private volatile ExecutorService ioPool;// null means catAll/echoAll do their I/O on the calling thread
+	private volatile boolean atomicEcho;
+	private volatile ContentCache contentCache;// null means every read goes to disk
+	private TagJournal journal;// null when tags are not persisted
+        private final TagManagerStats stats = new TagManagerStats();
+        // Stripes keyed by tag name and file path. A tag's file bitmap is guarded by the
+        // tag's stripe, a file's tag ids by the file's stripe; changing which files
+        // exist takes every stripe.
+        private final StripedLock stripes = new StripedLock(StripedLock.DEFAULT_STRIPES, stats);
+
+
+    public FileTagManager() {
+    }
+
+    /**
+     * Creates a FileTagManager whose tags persist from run to run. Every
+     * mutation is logged to the journal before it returns, and init replays
+     * the journal on top of the starting set of files.
+     *
+     * @param journal
+     */
+    public FileTagManager(TagJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return Latencies, lock timings and I/O counters of this manager
+     */
+    public TagManagerStats getStats() {
+        return stats;
+    }
 
     @Override
     public Iterable<? extends ITag> listTags() {
-        long stamp = lock.tryOptimisticRead();
-        List<Tag> tagList = tags;
-        if (!lock.validate(stamp)) {
-            stamp = lock.readLock();
-            try {
-                tagList = tags;
-            } finally {
-                lock.unlockRead(stamp);
-            }
+        long start = System.nanoTime();
+        try {
+            return tagSnapshot.get();
+        } finally {
+            stats.record(TagManagerStats.Op.LIST_TAGS, start);
         }
-        return tagList;
     }
 
     @Override
     public ITag addTag(String name) throws TagExistsException {
-
-        Tag temp = new Tag(name);
-        long stamp = lock.readLock();
-        try{
-            if(tagExists(name)){throw new TagExistsException();}
-            long ws = lock.tryConvertToWriteLock(stamp);
-            if (ws != 0L) {
-                stamp = ws;
-                tags.add(temp);
-            }
-            else{
-                lock.unlockRead(stamp);
-                stamp = lock.writeLock();
-                tags.add(temp);
+        long start = System.nanoTime();
+        try {
+            Tag temp;
+            long logged;
+            try (StripedLock.Held held = stripes.acquire(name, true)) {
+                if(tags.containsKey(name)){
+                    throw new TagExistsException();
+                }//every change to this name holds its stripe, so it stays free
+                temp = new Tag(nextTagId.getAndIncrement(), name);//only allocated once the name is free, so ids stay dense
+                registerId(temp);//reachable by id before it is reachable by name
+                tags.put(name, temp);
+                tagSnapshot.updateAndGet(list -> with(list, temp));
+                logged = log(TagJournal.ADD_TAG, name);
             }
-        }finally {
-            lock.unlock(stamp);
-        }
+            synced(logged);
 
-        return temp;
+            return temp;
+        } finally {
+            stats.record(TagManagerStats.Op.ADD_TAG, start);
+        }
     }
 
     @Override
     public ITag editTag(String oldTagName, String newTagName) throws TagExistsException, NoSuchTagException {
-        Tag oldTag = null;
-        long stamp = lock.readLock();
+        long start = System.nanoTime();
         try {
-            if (tagExists(newTagName)) {
-                throw new TagExistsException();
-            }
+            Tag oldTag = null;
+            long logged;
+            try (StripedLock.Held held = stripes.acquire(oldTagName, newTagName, true)) {
+                if (tagExists(newTagName)) {
+                    throw new TagExistsException();
+                }
 
-            oldTag = findTag(oldTagName);
+                oldTag = findTag(oldTagName);
 
-            if (oldTag == null) {
-                throw new NoSuchTagException();
-            }
-            long ws = lock.tryConvertToWriteLock(stamp);
-            if (ws != 0L) {
-                stamp = ws;
-                oldTag.setName(newTagName);
-            }
-            else{
-                lock.unlockRead(stamp);
-                stamp = lock.writeLock();
+                if (oldTag == null) {
+                    throw new NoSuchTagException();
+                }
+                //Re-key in place: publish the new entry, rename, then retire the old one.
+                //A lock-free reader sees the tag under at least one name throughout.
+                tags.put(newTagName, oldTag);
                 oldTag.setName(newTagName);
+                tags.remove(oldTagName, oldTag);
+                logged = log(TagJournal.EDIT_TAG, oldTagName, newTagName);
             }
-        }finally {
-            lock.unlock(stamp);
+            synced(logged);
+            return oldTag;
+        } finally {
+            stats.record(TagManagerStats.Op.EDIT_TAG, start);
         }
-        return oldTag;
     }
 
     @Override
     public ITag deleteTag(String tagName) throws NoSuchTagException, DirectoryNotEmptyException {
-        long stamp = lock.readLock();
-        try{
-            for(Tag x : tags){//search for tag match param
-                if(x.getName().equals(tagName)){
-                    if(x.hasFiles()){//if the tag has files attached to it throw erro
-                        throw new DirectoryNotEmptyException(x.getName());
-                    }
-                    else {//otherwise complete the deletion
-                        long ws = lock.tryConvertToWriteLock(stamp);
-                        if (ws != 0L) {
-                            stamp = ws;
-                            tags.remove(x);
-                            return x;
-                        }
-                        else{
-                            lock.unlockRead(stamp);
-                            stamp = lock.writeLock();
-                            tags.remove(x);
-                            return x;
-                        }
-                    }
+        long start = System.nanoTime();
+        try {
+            Tag x;
+            long logged;
+            try (StripedLock.Held held = stripes.acquire(tagName, true)) {
+                x = findTag(tagName);
+                if(x == null){
+                    throw new NoSuchTagException();
+                }
+                if(x.hasFiles()){//if the tag has files attached to it throw erro
+                    throw new DirectoryNotEmptyException(x.getName());
                 }
+                tags.remove(tagName, x);//otherwise complete the deletion
+                unregisterId(x);
+                Tag deleted = x;
+                tagSnapshot.updateAndGet(list -> without(list, deleted));
+                logged = log(TagJournal.DELETE_TAG, tagName);
             }
-        }finally {
-            lock.unlock(stamp);
+            synced(logged);
+            return x;
+        } finally {
+            stats.record(TagManagerStats.Op.DELETE_TAG, start);
         }
-
-        throw new NoSuchTagException();
     }
 
 	@Override
     public void init(List<Path> files) {
-        TaggedFile currentFile = null;
-        Tag unTagged = null;//create untagged Tag
+        long start = System.nanoTime();
+        try {
+            TaggedFile currentFile = null;
+            Tag unTagged = new Tag(nextTagId.getAndIncrement(), "untagged");//create untagged Tag; call add tag the Tag object is returned as iTag and cast to Tag
+            tags.put(unTagged.getName(), unTagged);
+            registerId(unTagged);
 
-        unTagged = new Tag("untagged");//call add tag the Tag object is returned as iTag and cast to Tag
-        tags.add(unTagged);
+            List<TaggedFile> added = new ArrayList<>(files.size());
+            for (Path file : files) {//iterate thru files
+                currentFile = new TaggedFile(nextFileId.getAndIncrement(), file, unTagged);//each files is a new object with untagged as its first tag
+                taggedFiles.put(currentFile.getName(), currentFile);//add to our files index
+                unTagged.addFile(currentFile);//add file to untagged file list
+                registerId(currentFile);
+                added.add(currentFile);
+            }
+            indexPaths(added);
+            tagSnapshot.updateAndGet(list -> with(list, unTagged));
+            fileSnapshot.updateAndGet(list -> {
+                List<TaggedFile> copy = new ArrayList<>(list);
+                copy.addAll(added);
+                return Collections.unmodifiableList(copy);
+            });
 
-        for (Path file : files) {//iterate thru files
-            currentFile = new TaggedFile(file, unTagged);//each files is a new object with untagged as its first tag
-            taggedFiles.add(currentFile);//add to our files list
-            unTagged.files.add(currentFile);//add file to untagged file list
-            
+            if (journal != null) {
+                replayJournal();
+            }
+        } finally {
+            stats.record(TagManagerStats.Op.INIT, start);
         }
     }
 
 
-    @Override
-    public Iterable<? extends TaggedFile> listAllFiles() {//simply return the list of files
-        long stamp = lock.tryOptimisticRead();
-        List<TaggedFile> fileList = taggedFiles;
-        if (!lock.validate(stamp)) {
-            stamp = lock.readLock();
-            try {
-                fileList = taggedFiles;
-            } finally {
-                lock.unlockRead(stamp);
+    /**
+     * Starts tracking files that appeared after init. Each new file gets the
+     * "untagged" tag; paths that are already known are ignored.
+     *
+     * @param files
+     *            Paths of the new files
+     * @return The number of files that were added
+     */
+    public int addFiles(Collection<Path> files) {
+        long start = System.nanoTime();
+        try {
+            List<TaggedFile> added = new ArrayList<>(files.size());
+            try (StripedLock.Held held = stripes.acquireAll(true)) {
+                Tag unTagged = findTag("untagged");
+                for (Path file : files) {
+                    if (fileExists(file.toString())) {
+                        continue;
+                    }
+                    TaggedFile fileObj = new TaggedFile(nextFileId.getAndIncrement(), file, unTagged);
+                    taggedFiles.put(fileObj.getName(), fileObj);
+                    unTagged.addFile(fileObj);
+                    registerId(fileObj);
+                    added.add(fileObj);
+                }
+                if (!added.isEmpty()) {
+                    indexPaths(added);
+                    fileSnapshot.updateAndGet(list -> {
+                        List<TaggedFile> copy = new ArrayList<>(list);
+                        copy.addAll(added);
+                        return Collections.unmodifiableList(copy);
+                    });
+                }
             }
+            return added.size();
+        } finally {
+            stats.record(TagManagerStats.Op.ADD_FILES, start);
         }
-        return fileList;
     }
 
-    @Override
-    public Iterable<? extends TaggedFile> listFilesByTag(String tag) throws NoSuchTagException {
-        long stamp = lock.tryOptimisticRead();
-        for(Tag x : tags) {//search for tag match param
-            if (x.getName().equals(tag)) {
-                return x.files;//return list of files attached to tage
-            }
-        }
-        if (!lock.validate(stamp)) {
-            stamp = lock.readLock();
-            try {
-                for(Tag x : tags) {//search for tag match param
-                    if (x.getName().equals(tag)) {
-                        return x.files;//return list of files attached to tage
+    /**
+     * Stops tracking files that no longer exist, removing them from every tag
+     * they had. Unknown paths are ignored. Removing a tagged file is
+     * journaled, so a file that comes back under the same path starts out
+     * "untagged" after a restart too, just as it does when addFiles sees it
+     * again.
+     *
+     * @param files
+     *            Paths of the removed files
+     * @return The number of files that were removed
+     */
+    public int removeFiles(Collection<Path> files) {
+        long start = System.nanoTime();
+        try {
+            Set<TaggedFile> removed = new HashSet<>();
+            long logged = 0;
+            try (StripedLock.Held held = stripes.acquireAll(true)) {
+                Tag unTagged = findTag("untagged");
+                for (Path file : files) {
+                    TaggedFile fileObj = taggedFiles.remove(file.toString());
+                    if (fileObj == null) {
+                        continue;
+                    }
+                    pathIndex.remove(fileObj.getName());
+                    for (int tagId : fileObj.getTagIds()) {
+                        tagsById[tagId].removeFile(fileObj);
+                    }
+                    if (!fileObj.hasTag(unTagged)) {
+                        logged = log(TagJournal.REMOVE_FILE, fileObj.getName());//its tags are not replayed onto a file re-added later
                     }
+                    filesById[fileObj.getId()] = null;
+                    liveFileIds.clear(fileObj.getId());
+                    removed.add(fileObj);
+                }
+                if (!removed.isEmpty()) {
+                    fileSnapshot.updateAndGet(list -> {
+                        List<TaggedFile> copy = new ArrayList<>(list);
+                        copy.removeIf(removed::contains);
+                        return Collections.unmodifiableList(copy);
+                    });
                 }
-            } finally {
-                lock.unlockRead(stamp);
             }
+            synced(logged);
+            return removed.size();
+        } finally {
+            stats.record(TagManagerStats.Op.REMOVE_FILES, start);
         }
-        throw new NoSuchTagException();//tag param wasnt found
     }
 
     @Override
-    public boolean tagFile(String file, String tag) throws NoSuchFileException, NoSuchTagException{
+    public Iterable<? extends TaggedFile> listAllFiles() {//simply return the current snapshot of files
+        long start = System.nanoTime();
+        try {
+            return fileSnapshot.get();
+        } finally {
+            stats.record(TagManagerStats.Op.LIST_ALL_FILES, start);
+        }
+    }
+
+    @Override
+    public Iterable<? extends TaggedFile> listFilesByTag(String tag) throws NoSuchTagException {
+        long start = System.nanoTime();
+        try {
+            return stripes.read(tag, () -> {//the file list is built from ids, which needs a validated view
+                Tag x = findTag(tag);//look up the tag by name
+                if (x == null) {
+                    throw new NoSuchTagException();//tag param wasnt found
+                }
+                return filesOf(x);//return list of files attached to tage
+            });
+        } finally {
+            stats.record(TagManagerStats.Op.LIST_FILES_BY_TAG, start);
+        }
+    }
 
-        long stamp = lock.writeLock();
+    @Override
+    public Iterable<? extends TaggedFile> listFilesByQuery(String query) throws NoSuchTagException {
+        long start = System.nanoTime();
         try {
+            TagQuery parsed = TagQuery.parse(query);
+            return stripes.readAll(() -> {//every bitmap from the same moment
+                BitSet matches = parsed.evaluate(name -> {
+                    Tag tagObj = findTag(name);
+                    return tagObj == null ? null : tagObj.copyFileIds();
+                }, liveFileIds);
+                return filesOf(matches);
+            });
+        } finally {
+            stats.record(TagManagerStats.Op.LIST_FILES_BY_QUERY, start);
+        }
+    }
 
-            Tag tagObj = null;
-            TaggedFile fileObj = null;
+    @Override
+    public boolean tagFile(String file, String tag) throws NoSuchFileException, NoSuchTagException{
+        long start = System.nanoTime();
+        try {
+            long logged;
+            try (StripedLock.Held held = stripes.acquire(tag, file, true)) {
 
-            if (tag.equals("untagged")) {
-                return false;
-            } //Cannot use untagged as tag
+                Tag tagObj = null;
+                TaggedFile fileObj = null;
 
-            if (!tagExists(tag)) {
-                throw new NoSuchTagException();
-            } //No tag found
+                if (tag.equals("untagged")) {
+                    return false;
+                } //Cannot use untagged as tag
+
+                tagObj = findTag(tag);
+
+                if (tagObj == null) {
+                    throw new NoSuchTagException();
+                } //No tag found
 
-            tagObj = findTag(tag);
+                fileObj = findFile(file);
+
+                if (fileObj == null) {
+                    throw new NoSuchFileException(file);
+                } //File not found in untagged files
+
+                if (!applyTag(fileObj, tagObj, findTag("untagged"))) {
+                    return false;
+                } //File already has tag
+                logged = log(TagJournal.TAG_FILE, file, tag);
+            }
+            synced(logged);
+            return true;
+        } finally {
+            stats.record(TagManagerStats.Op.TAG_FILE, start);
+        }
+    }
+
+    @Override
+    public boolean removeTag(String file, String tag) throws NoSuchFileException, NoSuchTagException {
+        long start = System.nanoTime();
+        try {
+            long logged;
+            try (StripedLock.Held held = stripes.acquire(tag, file, true)) {
+                if (tag.equals("untagged")) {
+                    return false;
+                }
+
+                Tag tagObj = null;
+                TaggedFile fileObj = null;
 
 
-            if (!fileExists(file)) {
-                throw new NoSuchFileException(file);
-            } //File not found in untagged files
+                tagObj = findTag(tag);
 
 
-            fileObj = findFile(file);
+                if (tagObj == null) {
+                    throw new NoSuchTagException();
+                } //No tag found
 
-            if (fileExists(file) && tagObj.files.contains(fileObj)) {
-                return false;
-            } //File already has tag
+                fileObj = findFile(file);
 
-            fileObj.tags.remove(findTag("untagged")); //Remove untagged from file tag
-            findTag("untagged").files.remove(fileObj);
-            taggedFiles.get(taggedFiles.indexOf(fileObj)).tags.remove(findTag("untagged"));
+                if (fileObj == null) {
+                    throw new NoSuchFileException(file);
+                } // No file found
 
-            fileObj.tags.add(tagObj);
 
-            tagObj.files.add(fileObj);
+                if (!applyUntag(fileObj, tagObj, findTag("untagged"))) {
+                    return false;
+                } //File doesn't have this tag
+                logged = log(TagJournal.REMOVE_TAG, file, tag);
+            }
+            synced(logged);
             return true;
-        }finally {
-            lock.unlockWrite(stamp);
+        } finally {
+            stats.record(TagManagerStats.Op.REMOVE_TAG, start);
         }
     }
 
     @Override
-    public boolean removeTag(String file, String tag) throws NoSuchFileException, NoSuchTagException {
+    public Map<String, TagOutcome> tagFiles(Collection<String> files, String tag) throws NoSuchTagException {
+        long start = System.nanoTime();
+        try {
+            return applyToFiles(files, tag, true);
+        } finally {
+            stats.record(TagManagerStats.Op.TAG_FILES, start);
+        }
+    }
 
-        long stamp = lock.writeLock();
+    @Override
+    public Map<String, TagOutcome> removeTags(Collection<String> files, String tag) throws NoSuchTagException {
+        long start = System.nanoTime();
         try {
-            if (tag.equals("untagged")) {
-                return false;
-            }
+            return applyToFiles(files, tag, false);
+        } finally {
+            stats.record(TagManagerStats.Op.REMOVE_TAGS, start);
+        }
+    }
+
+    @Override
+    public Map<String, TagOutcome> tagByPattern(String pattern, String tag) throws NoSuchTagException {
+        long start = System.nanoTime();
+        try {
+            return applyToFiles(matchFiles(pattern), tag, true);
+        } finally {
+            stats.record(TagManagerStats.Op.TAG_BY_PATTERN, start);
+        }
+    }
+
+    /**
+     * Finds the known files whose path matches a pattern. Only the paths
+     * under the pattern's literal leading directories are looked at, and
+     * those are tested in parallel when there are many of them.
+     *
+     * @param pattern
+     *            A glob, or "glob:" or "regex:" followed by a pattern as for
+     *            {@link FileSystem#getPathMatcher(String)}. Relative globs are
+     *            resolved against the working directory; a regex is matched
+     *            against the whole absolute path.
+     * @return The matching paths, in sorted order
+     * @throws IllegalArgumentException
+     *             If the pattern is malformed
+     */
+    public List<String> matchFiles(String pattern) {
+        FileSystem fs = BASEDIR.getFileSystem();
+        String separator = fs.getSeparator();
+        boolean regex = pattern.startsWith("regex:");
+        String body = pattern.startsWith("glob:") || regex ? pattern.substring(pattern.indexOf(':') + 1) : pattern;
+        if (regex && body.startsWith("^")) {
+            body = body.substring(1);//matches are always anchored
+        }
+        if (!regex && !Paths.get(literalPrefix(body, false)).isAbsolute()) {
+            body = escape(System.getProperty("user.dir") + separator) + body;
+        }
+        PathMatcher matcher = fs.getPathMatcher((regex ? "regex:" : "glob:") + body);
+
+        String prefix = literalPrefix(body, regex);
+        prefix = prefix.substring(0, prefix.lastIndexOf(separator) + 1);//only whole directories, the last name may be partly wild
+        List<String> candidates = new ArrayList<>(pathIndex.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet());
+        Stream<String> stream = candidates.size() >= PARALLEL_MATCH_THRESHOLD ? candidates.parallelStream() : candidates.stream();
+        return stream.filter(path -> matcher.matches(Paths.get(path))).collect(Collectors.toList());
+    }
 
-            Tag tagObj = null;
-            TaggedFile fileObj = null;
+    private static final String GLOB_SPECIAL = "*?[]{}\\";
+    private static final String REGEX_SPECIAL = "\\.[]{}()*+?^$|";
 
+    /**
+     * @return The literal text every match of a pattern starts with,
+     *         unescaped. Empty for a regex with an alternation, whose
+     *         branches need not share the text before the first '|'.
+     */
+    private static String literalPrefix(String pattern, boolean regex) {
+        if (regex && hasAlternation(pattern)) {
+            return "";
+        }
+        String special = regex ? REGEX_SPECIAL : GLOB_SPECIAL;
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length() && special.indexOf(pattern.charAt(i + 1)) >= 0) {
+                literal.append(pattern.charAt(++i));
+            } else if (special.indexOf(c) >= 0) {
+                if (regex && "*?{".indexOf(c) >= 0 && literal.length() > 0) {
+                    literal.setLength(literal.length() - 1);//the quantifier applies to the last literal
+                }
+                break;
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
 
-            tagObj = findTag(tag);
+    /**
+     * @return True if a regex has a '|' that is neither escaped nor inside a
+     *         character class
+     */
+    private static boolean hasAlternation(String regex) {
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == ']') {
+                inClass = false;
+            } else if (c == '|' && !inClass) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : text.toCharArray()) {
+            if (GLOB_SPECIAL.indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
 
+    /**
+     * Tags or untags every file with the stripes of the tag and all the files
+     * held at once, logging one journal entry per changed file and waiting
+     * for all of them with a single sync.
+     */
+    private Map<String, TagOutcome> applyToFiles(Collection<String> files, String tag, boolean add) throws NoSuchTagException {
+        Map<String, TagOutcome> result = new LinkedHashMap<>();
+        long logged = 0;
+        BitSet needed = new BitSet(stripes.getStripeCount());
+        needed.set(stripes.stripeOf(tag));
+        for (String file : files) {
+            needed.set(stripes.stripeOf(file));
+        }
+        try (StripedLock.Held held = stripes.acquire(needed, true)) {
+            Tag tagObj = findTag(tag);
             if (tagObj == null) {
                 throw new NoSuchTagException();
             } //No tag found
+            Tag unTagged = findTag("untagged");
+            for (String file : files) {
+                if (result.containsKey(file)) {
+                    continue;
+                } //Listed twice, the first result stands
+                TaggedFile fileObj = findFile(file);
+                if (fileObj == null) {
+                    result.put(file, TagOutcome.NO_SUCH_FILE);
+                } else if (tagObj == unTagged || !(add ? applyTag(fileObj, tagObj, unTagged) : applyUntag(fileObj, tagObj, unTagged))) {
+                    result.put(file, TagOutcome.UNCHANGED);
+                } else {
+                    result.put(file, TagOutcome.CHANGED);
+                    logged = log(add ? TagJournal.TAG_FILE : TagJournal.REMOVE_TAG, file, tag);
+                }
+            }
+        }
+        synced(logged);
+        return result;
+    }
 
-            fileObj = findFile(file);
+    /**
+     * Adds a tag to a file, taking it off the untagged list. Caller must hold
+     * the write locks of the tag's and the file's stripes.
+     *
+     * @return false if the file already had the tag
+     */
+    private static boolean applyTag(TaggedFile fileObj, Tag tagObj, Tag unTagged) {
+        if (!tagObj.addFile(fileObj)) {
+            return false;
+        }
+        fileObj.addTag(tagObj);
+        fileObj.removeTag(unTagged); //Remove untagged from file tag
+        unTagged.removeFile(fileObj);
+        return true;
+    }
 
-            if (fileObj == null) {
-                throw new NoSuchFileException(file);
-            } // No file found
+    /**
+     * Removes a tag from a file, putting it back on the untagged list if that
+     * was its last tag. Caller must hold the write locks of the tag's and the
+     * file's stripes.
+     *
+     * @return false if the file didn't have the tag
+     */
+    private static boolean applyUntag(TaggedFile fileObj, Tag tagObj, Tag unTagged) {
+        if (!tagObj.removeFile(fileObj)) {
+            return false;
+        }
+        fileObj.removeTag(tagObj); //Remove tag from file tag list
+        if (!fileObj.hasTags()) {
+            fileObj.addTag(unTagged);
+            unTagged.addFile(fileObj);
+        } //Add untagged to file if tag lists empty
+        return true;
+    }
 
+	@Override
+	public Iterable<? extends ITag> getTags(String file) throws NoSuchFileException {
+        long start = System.nanoTime();
+        try {
+            return stripes.read(file, () -> {//the tag list is built from ids, which needs a validated view
+                TaggedFile fileObj = findFile(file);
 
-            tagObj.files.remove(fileObj); //Remove file from tag list
-            fileObj.tags.remove(tagObj); //Remove tag from file tag list
+                if(fileObj == null){throw new NoSuchFileException(file);}
 
-            if (fileObj.tags.isEmpty()) {
-                fileObj.tags.add(findTag("untagged"));
-            } //Add untagged to file if tag lists empty
-            return true;
-        }finally {
-            lock.unlockWrite(stamp);
+                return tagsOf(fileObj);
+            });
+        } finally {
+            stats.record(TagManagerStats.Op.GET_TAGS, start);
+        }
+	}
+
+    /**
+     * Sets how many files catAllFiles may read (and echoToAllFiles may write)
+     * at once. I/O is only issued once every lock for the tag is held, and
+     * catAllFiles output keeps the tag's file order.
+     *
+     * @param parallelism
+     *            Number of I/O threads; 1 (the default) reads on the calling
+     *            thread
+     */
+    public synchronized void setIoParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        ExecutorService old = ioPool;
+        ioPool = parallelism == 1 ? null : Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "FileTagManager-io");
+            t.setDaemon(true);
+            return t;
+        });
+        if (old != null) {
+            old.shutdown();//lets in-flight I/O finish
         }
     }
 
-	@Override
-	public Iterable<? extends ITag> getTags(String file) throws NoSuchFileException {
+    /**
+     * When enabled, echoToAllFiles first writes the content to a temporary
+     * file next to every target and only renames them into place once all of
+     * them were written. A failure while writing then leaves every file with
+     * its old content, and no file is ever seen half written. Each file is
+     * replaced atomically, but the batch as a whole is not: if a rename
+     * fails, the files renamed before it keep the new content.
+     *
+     * @param atomic
+     */
+    public void setAtomicEcho(boolean atomic) {
+        atomicEcho = atomic;
+    }
+
+    public boolean isAtomicEcho() {
+        return atomicEcho;
+    }
+
+    /**
+     * Locks a tag's file list and every one of its files, for callers that do
+     * their own I/O on them (e.g. asynchronously) with the same guarantees as
+     * catAllFiles (read) or echoToAllFiles (write)
+     *
+     * @param tag
+     * @param forWrite
+     *            True to write lock the files, else false. The file list is
+     *            read locked either way.
+     * @return The held locks, to be released with {@link TagLock#close()}
+     * @throws NoSuchTagException
+     *             If no tag exists with the given name
+     */
+    public TagLock lockTag(String tag, boolean forWrite) throws NoSuchTagException {
+        StripedLock.Held held = stripes.acquire(tag, false);
+        try {
+            Tag tagObj = findTag(tag);
+            if(tagObj == null){throw new NoSuchTagException();}
+            return new TagLock(held, FileLockSet.acquire(filesOf(tagObj), forWrite, stats.getFileLockWaitHistogram()));
+        } catch (NoSuchTagException | RuntimeException | Error e) {
+            held.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Caches the content of files read by readFile and catAllFiles, up to a
+     * total size. echoToAllFiles and writeFile drop the files they write.
+     *
+     * @param capacity
+     *            Most bytes to keep cached, or 0 to disable the cache (the
+     *            default)
+     */
+    public void setContentCache(long capacity) {
+        contentCache = capacity == 0 ? null : new ContentCache(capacity);
+    }
+
+    /**
+     * @return The content cache, or null if there is none
+     */
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
 
-        long stamp = lock.tryOptimisticRead();
+    @Override
+    protected byte[] readBytes(Path path) throws IOException {
+        ContentCache cache = contentCache;
+        if (cache == null) {
+            return super.readBytes(path);
+        }
+        ByteBuffer content = cache.read(path);
+        if (content.hasArray()) {
+            return content.array();//a miss, already a fresh copy of the whole file
+        }
+        byte[] bytes = new byte[content.remaining()];
+        content.get(bytes);
+        return bytes;
+    }
 
+    /**
+     * Like the inherited version, holding the file's read lock while it is
+     * read if it is a known file
+     */
+    @Override
+    public ByteBuffer readFileBuffer(String file) throws IOException {
         TaggedFile fileObj = findFile(file);
-            
-        if(fileObj == null){throw new NoSuchFileException(file);}
+        long stamp = fileObj == null ? 0 : lockFile(fileObj, false);
+        try {
+            return super.readFileBuffer(file);
+        } finally {
+            if (fileObj != null) {
+                fileObj.getLock().unlockRead(stamp);
+            }
+        }
+    }
 
-        if (!lock.validate(stamp)) {
-            stamp = lock.readLock();
-            try {
-                fileObj = findFile(file);
-            } finally {
-                lock.unlockRead(stamp);
+    /**
+     * Like the inherited version, holding the file's read lock while it is
+     * copied if it is a known file, and serving small files from the content
+     * cache
+     */
+    @Override
+    public long readFile(String file, WritableByteChannel out) throws IOException {
+        TaggedFile fileObj = findFile(file);
+        long stamp = fileObj == null ? 0 : lockFile(fileObj, false);
+        try {
+            long written = transferFile(Paths.get(file), out);
+            stats.addBytesRead(written);
+            return written;
+        } finally {
+            if (fileObj != null) {
+                fileObj.getLock().unlockRead(stamp);
             }
         }
+    }
 
-		return fileObj.tags;  
-	}
+    @Override
+    protected void afterWrite(Path path) {
+        ContentCache cache = contentCache;
+        if (cache != null) {
+            cache.invalidate(path);
+        }
+    }
 
     @Override
     public String catAllFiles(String tag) throws NoSuchTagException, IOException {
-        String catFiles = "";
-        Iterable<? extends TaggedFile> fileList = listFilesByTag(tag);
-        Long stamp = lockFile(tag, false);
-        try{
-            if(!tagExists(tag)){throw new NoSuchTagException();}
+        long start = System.nanoTime();
+        try {
+            ByteArrayOutputStream catFiles = new ByteArrayOutputStream();
+            ExecutorService pool = ioPool;
+            if (pool == null) {
+                catToChannel(tag, Channels.newChannel(catFiles));
+                return catFiles.toString();//decodes straight from the stream's buffer, no extra copy
+            }
+
+            try (StripedLock.Held held = stripes.acquire(tag, false)) {//keep the tag's file list stable while reading
+                Tag tagObj = findTag(tag);
+                if(tagObj == null){throw new NoSuchTagException();}
+
+                List<TaggedFile> files = filesOf(tagObj);
+                try (FileLockSet locks = FileLockSet.acquire(files, false, stats.getFileLockWaitHistogram())) {
+                    List<Callable<ByteBuffer>> reads = new ArrayList<>(files.size());
+                    for(TaggedFile tagFile : files){
+                        reads.add(() -> mapLocked(Paths.get(tagFile.getName())));
+                    }
+                    //Reassemble in tag order; every read is done before the locks are released
+                    WritableByteChannel sink = Channels.newChannel(catFiles);
+                    for(ByteBuffer content : runAll(pool, reads)){
+                        while (content.hasRemaining()) {
+                            sink.write(content);
+                        }
+                    }
+                    stats.addBytesRead(catFiles.size());
+                }
+            }
+
+            return catFiles.toString();
+        } finally {
+            stats.record(TagManagerStats.Op.CAT_ALL, start);
+        }
+    }
+
+    @Override
+    public long catAllFiles(String tag, WritableByteChannel out) throws NoSuchTagException, IOException {
+        long start = System.nanoTime();
+        try {
+            return catToChannel(tag, out);
+        } finally {
+            stats.record(TagManagerStats.Op.CAT_ALL_TO_CHANNEL, start);
+        }
+    }
+
+    private long catToChannel(String tag, WritableByteChannel out) throws NoSuchTagException, IOException {
+        long written = 0;
+        try (StripedLock.Held held = stripes.acquire(tag, false)) {//keep the tag's file list stable while reading
+            Tag tagObj = findTag(tag);
+            if(tagObj == null){throw new NoSuchTagException();}
 
-            //Find file content according to tag, and store in string
-            for(TaggedFile tagFile : fileList){
-                catFiles += FileTagManager.super.readFile(tagFile.getName());
+            List<TaggedFile> files = filesOf(tagObj);
+            try (FileLockSet locks = FileLockSet.acquire(files, false, stats.getFileLockWaitHistogram())) {
+                //Copy each file's content straight into the sink, in tag order
+                for(TaggedFile tagFile : files){
+                    written += transferFile(Paths.get(tagFile.getName()), out);
+                }
             }
-        }finally {
-            unLockFile(tag, stamp, false);
+        } finally {
+            stats.addBytesRead(written);//whatever was copied, even if a later file failed
         }
 
-        return catFiles;
+        return written;
+    }
+
+    /**
+     * Runs every task, on the pool if there is one and on the calling thread
+     * otherwise. Always waits for all tasks to finish, so that no I/O is still
+     * running once the caller releases its locks, then rethrows the first
+     * failure.
+     *
+     * @param pool
+     * @param tasks
+     * @return The results of the tasks, in the same order
+     * @throws IOException
+     */
+    private static <T> List<T> runAll(ExecutorService pool, List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        Throwable failure = null;
+        boolean interrupted = false;
+        if (pool == null) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(pool.submit(task));
+        }
+        for (Future<T> future : futures) {
+            while (true) {
+                try {
+                    results.add(future.get());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;//keep waiting, the caller still holds the locks this task relies on
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    results.add(null);
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null) {
+            throw new IOException(failure);
+        }
+        return results;
+    }
+
+    /**
+     * Returns a file's content, memory mapped and paged in if it is large,
+     * otherwise read through the content cache. The caller must hold the
+     * file's lock until it is done with the buffer: reading a mapping of a
+     * file that was truncated meanwhile crashes with an InternalError.
+     *
+     * @param path
+     * @return The whole content
+     * @throws IOException
+     */
+    private ByteBuffer mapLocked(Path path) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < MAP_THRESHOLD) {
+                return ByteBuffer.wrap(readBytes(path));
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to map into one buffer");
+            }
+            return in.map(FileChannel.MapMode.READ_ONLY, 0, size).load();//page in on the pool, not while reassembling
+        }
+    }
+
+    /**
+     * Copies a whole file into a channel, from the content cache if the file
+     * is small enough to be cached, otherwise letting the OS move the bytes
+     * where it can. The caller must hold the file's lock.
+     *
+     * @param path
+     * @param out
+     * @return Number of bytes copied
+     * @throws IOException
+     */
+    private long transferFile(Path path, WritableByteChannel out) throws IOException {
+        ContentCache cache = contentCache;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (cache != null && cache.isCacheable(size)) {
+                ByteBuffer content = cache.read(path);
+                long copied = content.remaining();
+                while (content.hasRemaining()) {
+                    out.write(content);
+                }
+                return copied;
+            }
+            long position = 0;
+            while (position < size) {//transferTo may move fewer bytes than asked
+                position += in.transferTo(position, size - position, out);
+            }
+            return position;
+        }
     }
 
     @Override
     public void echoToAllFiles(String tag, String content) throws NoSuchTagException, IOException {
-        Iterable<? extends TaggedFile> fileList = listFilesByTag(tag);
-        Long stamp = lockFile(tag, false);
-        try{
-            if(!tagExists(tag)){throw new NoSuchTagException();}
+        long start = System.nanoTime();
+        try {
+            byte[] bytes = content.getBytes();//encode once, every file gets a view of the same buffer
+            ByteBuffer payload = ByteBuffer.allocateDirect(bytes.length);
+            payload.put(bytes).flip();
+
+            try (StripedLock.Held held = stripes.acquire(tag, false)) {//the tag's file list only needs to be stable, the files themselves are write locked below
+                Tag tagObj = findTag(tag);
+                if(tagObj == null){throw new NoSuchTagException();}
+
+                List<TaggedFile> files = filesOf(tagObj);
+                List<Path> targets = new ArrayList<>(files.size());
+                for(TaggedFile tagFile : files){
+                    Path target = Paths.get(tagFile.getName());
+                    checkWritable(target);
+                    targets.add(target);
+                }
 
-            unLockFile(tag, stamp, false);
-            stamp = lockFile(tag, true);
-            for(TaggedFile tagFile : fileList){
-                FileTagManager.super.writeFile(tagFile.getName(), content);
+                try (FileLockSet locks = FileLockSet.acquire(files, true, stats.getFileLockWaitHistogram())) {
+                    try {
+                        if (atomicEcho) {
+                            writeAllAtomically(targets, payload);
+                        } else {
+                            List<Callable<Void>> writes = new ArrayList<>(targets.size());
+                            for (Path target : targets) {
+                                writes.add(() -> writeBuffer(target, payload.duplicate()));
+                            }
+                            runAll(ioPool, writes);
+                        }
+                    } finally {
+                        for (Path target : targets) {
+                            afterWrite(target);//even a failed echo may have changed some files
+                        }
+                    }
+                }
+                stats.addBytesWritten((long) bytes.length * targets.size());
             }
-        }finally {
-            unLockFile(tag, stamp, true);
+        } finally {
+            stats.record(TagManagerStats.Op.ECHO_ALL, start);
         }
+    }
 
+    @Override
+    public void appendToAllFiles(String tag, String content) throws NoSuchTagException, IOException {
+        long start = System.nanoTime();
+        try {
+            byte[] bytes = content.getBytes();
+            ByteBuffer payload = ByteBuffer.allocateDirect(bytes.length);
+            payload.put(bytes).flip();
+
+            try (StripedLock.Held held = stripes.acquire(tag, false)) {
+                Tag tagObj = findTag(tag);
+                if(tagObj == null){throw new NoSuchTagException();}
 
+                List<TaggedFile> files = filesOf(tagObj);
+                List<Path> targets = new ArrayList<>(files.size());
+                for(TaggedFile tagFile : files){
+                    Path target = Paths.get(tagFile.getName());
+                    checkWritable(target);
+                    targets.add(target);
+                }
+
+                //Write locks order concurrent appends the same way in every file
+                try (FileLockSet locks = FileLockSet.acquire(files, true, stats.getFileLockWaitHistogram())) {
+                    try {
+                        List<Callable<Void>> appends = new ArrayList<>(targets.size());
+                        for (Path target : targets) {
+                            appends.add(() -> appendBuffer(target, payload.duplicate()));
+                        }
+                        runAll(ioPool, appends);
+                    } finally {
+                        for (Path target : targets) {
+                            afterWrite(target);
+                        }
+                    }
+                }
+                stats.addBytesWritten((long) bytes.length * targets.size());
+            }
+        } finally {
+            stats.record(TagManagerStats.Op.APPEND_ALL, start);
+        }
     }
 
     @Override
-    public long lockFile(String name, boolean forWrite) throws NoSuchFileException {
-        long stamp = 0;
-        if(forWrite){
-            stamp = lock.writeLock();
+    public String readFile(String file, long offset, int length) throws IOException {
+        long start = System.nanoTime();
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("offset and length must not be negative");
+        }
+        TaggedFile fileObj = findFile(file);
+        long stamp = fileObj == null ? 0 : lockFile(fileObj, false);
+        try (FileChannel in = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            long size = in.size();
+            int n = (int) Math.max(0, Math.min(length, size - offset));
+            String range = new String(readRange(in, offset, n));
+            stats.addBytesRead(n);
+            return range;
+        } finally {
+            if (fileObj != null) {
+                fileObj.getLock().unlockRead(stamp);
+            }
+            stats.record(TagManagerStats.Op.READ_RANGE, start);
+        }
+    }
+
+    @Override
+    public String tail(String file, int lines) throws IOException {
+        long start = System.nanoTime();
+        if (lines < 0) {
+            throw new IllegalArgumentException("lines must not be negative");
+        }
+        TaggedFile fileObj = findFile(file);
+        long stamp = fileObj == null ? 0 : lockFile(fileObj, false);
+        try (FileChannel in = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            long size = in.size();
+            long from = lines == 0 ? size : 0;
+            //Scan back from the end for the newline before the first wanted line; a final newline ends the last line
+            long position = size > 0 && readRange(in, size - 1, 1)[0] == '\n' ? size - 1 : size;
+            ByteBuffer chunk = ByteBuffer.allocate(8192);
+            int found = 0;
+            scan:
+            while (lines > 0 && position > 0) {
+                int n = (int) Math.min(chunk.capacity(), position);
+                chunk.clear().limit(n);
+                readFully(in, chunk, position - n);
+                for (int i = n - 1; i >= 0; i--) {
+                    if (chunk.get(i) == '\n' && ++found == lines) {
+                        from = position - n + i + 1;
+                        break scan;
+                    }
+                }
+                position -= n;
+            }
+            if (size - from > Integer.MAX_VALUE) {
+                throw new IOException("The last " + lines + " lines of " + file + " are too large to return as a String");
+            }
+            stats.addBytesRead(size - from);
+            return new String(readRange(in, from, (int) (size - from)));
+        } finally {
+            if (fileObj != null) {
+                fileObj.getLock().unlockRead(stamp);
+            }
+            stats.record(TagManagerStats.Op.TAIL, start);
+        }
+    }
+
+    /**
+     * Reads bytes at a position without moving the channel's position
+     *
+     * @param in
+     * @param offset
+     * @param length
+     *            Number of bytes to read; must not go past the end of the
+     *            file
+     * @return The bytes read
+     * @throws IOException
+     */
+    private static byte[] readRange(FileChannel in, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(in, buffer, offset);
+        return buffer.array();
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long offset) throws IOException {
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("File shrank while it was read");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Appends the remaining bytes of a buffer to a file. The caller must hold
+     * the file's write lock.
+     *
+     * @param path
+     * @param content
+     * @return null
+     * @throws IOException
+     */
+    private static Void appendBuffer(Path path, ByteBuffer content) throws IOException {
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (content.hasRemaining()) {
+                out.write(content);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the content to a temporary file beside each target, then renames
+     * each temporary file over its target. If any temporary write fails, all
+     * temporary files are deleted and no target is touched. Each rename is
+     * atomic, the batch of renames is not: if one fails, the targets renamed
+     * before it keep the new content, and the temporary files not renamed
+     * yet are deleted.
+     *
+     * @param targets
+     * @param payload
+     * @throws IOException
+     */
+    private void writeAllAtomically(List<Path> targets, ByteBuffer payload) throws IOException {
+        Path[] temps = new Path[targets.size()];
+        List<Callable<Void>> writes = new ArrayList<>(targets.size());
+        for (int i = 0; i < temps.length; i++) {
+            int index = i;
+            writes.add(() -> {
+                Path target = targets.get(index).toAbsolutePath();
+                temps[index] = Files.createTempFile(target.getParent(), "." + target.getFileName(), ECHO_TEMP_SUFFIX);
+                copyPermissions(target, temps[index]);//createTempFile makes it 0600, the rename must not change the target's mode
+                return writeBuffer(temps[index], payload.duplicate());
+            });
         }
-        else {
-            stamp = lock.readLock();
+        try {
+            runAll(ioPool, writes);
+        } catch (IOException e) {
+            for (Path temp : temps) {
+                if (temp != null) {
+                    Files.deleteIfExists(temp);
+                }
+            }
+            throw e;
+        }
+        int renamed = 0;
+        try {
+            for (; renamed < temps.length; renamed++) {
+                Files.move(temps[renamed], targets.get(renamed), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (int i = renamed; i < temps.length; i++) {
+                try {
+                    Files.deleteIfExists(temps[i]);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a file the same POSIX permissions as another, on file systems
+     * that have them
+     *
+     * @param from
+     * @param to
+     * @throws IOException
+     */
+    private static void copyPermissions(Path from, Path to) throws IOException {
+        if (Files.getFileAttributeView(from, PosixFileAttributeView.class) == null) {
+            return;
         }
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (NoSuchFileException e) {
+            //the target doesn't exist yet, the temp file's own mode stands
+        }
+    }
+
+    /**
+     * Overwrites a file with the remaining bytes of a buffer
+     *
+     * @param path
+     * @param content
+     * @return null
+     * @throws IOException
+     */
+    private static Void writeBuffer(Path path, ByteBuffer content) throws IOException {
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (content.hasRemaining()) {
+                out.write(content);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long lockFile(String name, boolean forWrite) throws NoSuchFileException {
+        long start = System.nanoTime();
+        try {
+            TaggedFile fileObj = findFile(name);
+            if(fileObj == null){throw new NoSuchFileException(name);}
+
+            return lockFile(fileObj, forWrite);
+        } finally {
+            stats.record(TagManagerStats.Op.LOCK_FILE, start);
+        }
+    }
+
+    /**
+     * Locks one file's content, recording the wait in the stats
+     *
+     * @param fileObj
+     * @param forWrite
+     * @return The stamp to unlock with
+     */
+    private long lockFile(TaggedFile fileObj, boolean forWrite) {
+        long start = System.nanoTime();
+        long stamp = forWrite ? fileObj.getLock().writeLock() : fileObj.getLock().readLock();
+        stats.getFileLockWaitHistogram().recordSince(start);
         return stamp;
     }
 
     @Override
     public void unLockFile(String name, long stamp, boolean forWrite) throws NoSuchFileException {
-        if(forWrite){
-            lock.unlockWrite(stamp);
-        }
-        else{
-            lock.unlockRead(stamp);
+        long start = System.nanoTime();
+        try {
+            TaggedFile fileObj = findFile(name);
+            if(fileObj == null){throw new NoSuchFileException(name);}
+
+            if(forWrite){
+                fileObj.getLock().unlockWrite(stamp);
+            }
+            else{
+                fileObj.getLock().unlockRead(stamp);
+            }
+        } finally {
+            stats.record(TagManagerStats.Op.UNLOCK_FILE, start);
         }
     }
         
+    /**
+     * Queues a mutation in the journal, if there is one. Called while holding
+     * the lock that ordered the mutation.
+     *
+     * @param op
+     * @param args
+     * @return Sequence number to pass to synced, or 0 if nothing was logged
+     */
+    private long log(byte op, String... args) {
+        TagJournal j = journal;
+        return j == null ? 0 : j.append(op, args);
+    }
+
+    /**
+     * Waits for a logged mutation to be durable. Called after releasing locks
+     * so concurrent mutations share one fsync.
+     *
+     * @param logged
+     */
+    private void synced(long logged) {
+        TagJournal j = journal;
+        if (j == null || logged == 0) {
+            return;
+        }
+        j.sync(logged);
+        if (j.needsCompaction()) {
+            compactJournal();
+        }
+    }
+
+    /**
+     * Writes a fresh journal snapshot. Every stripe is held in read mode only
+     * while the tags are copied, so no mutation is applied or logged halfway
+     * through the copy; the snapshot is written and synced after they are
+     * released. A failure is counted in the stats and kept by the journal;
+     * the log is still intact, so compaction is retried after the next
+     * mutation.
+     */
+    private void compactJournal() {
+        TagJournal.Compaction compaction;
+        try (StripedLock.Held held = stripes.acquireAll(false)) {
+            compaction = journal.startCompaction(tagSnapshot.get(), fileSnapshot.get());
+        }
+        if (compaction == null) {
+            return;//another thread is compacting
+        }
+        try {
+            compaction.finish();
+        } catch (IOException e) {
+            stats.compactionFailed();
+        }
+    }
+
+    /**
+     * Restores the journal's latest snapshot, then re-applies every mutation
+     * logged after it. Entries that no longer apply (e.g. a file that was
+     * deleted since) are skipped.
+     */
+    private void replayJournal() {
+        TagJournal j = journal;
+        journal = null;//replayed mutations are already in the journal
+        try {
+            TagSnapshot snapshot = j.openSnapshot();
+            if (snapshot != null) {
+                loadSnapshot(snapshot);
+            }
+            j.replay((op, args) -> {
+                try {
+                    switch (op) {
+                        case TagJournal.ADD_TAG:
+                            addTag(args[0]);
+                            break;
+                        case TagJournal.EDIT_TAG:
+                            editTag(args[0], args[1]);
+                            break;
+                        case TagJournal.DELETE_TAG:
+                            deleteTag(args[0]);
+                            break;
+                        case TagJournal.TAG_FILE:
+                            tagFile(args[0], args[1]);
+                            break;
+                        case TagJournal.REMOVE_TAG:
+                            removeTag(args[0], args[1]);
+                            break;
+                        case TagJournal.REMOVE_FILE:
+                            untagAll(args[0]);
+                            break;
+                    }
+                } catch (IOException e) {
+                    //no longer applies to the current set of files
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            journal = j;
+        }
+        compactJournal();
+    }
+
+    /**
+     * Replays the removal of a file that is known again: it lost every tag,
+     * so it is back to "untagged"
+     *
+     * @param file
+     * @throws IOException
+     */
+    private void untagAll(String file) throws IOException {
+        for (ITag t : getTags(file)) {
+            if (!t.getName().equals("untagged")) {
+                removeTag(file, t.getName());
+            }
+        }
+    }
+
+    /**
+     * Makes a file reachable by its id. Called while holding every stripe in
+     * write mode (or from init).
+     *
+     * @param file
+     */
+    private void registerId(TaggedFile file) {
+        if (file.getId() >= filesById.length) {
+            filesById = Arrays.copyOf(filesById, Math.max(filesById.length * 2, file.getId() + 1));
+        }
+        filesById[file.getId()] = file;
+        liveFileIds.set(file.getId());
+    }
+
+    /**
+     * Adds files to the path index in sorted order; a skip list takes sorted
+     * inserts several times faster than the walk order of a big tree.
+     *
+     * @param files
+     */
+    private void indexPaths(List<TaggedFile> files) {
+        String[] names = new String[files.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = files.get(i).getName();
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            pathIndex.put(name, taggedFiles.get(name));
+        }
+    }
+
+    /**
+     * Makes a tag reachable by its id. Tags on different stripes register
+     * concurrently, so the table is grown under its own monitor; callers
+     * publish the tag by name only after this returns.
+     *
+     * @param tag
+     */
+    private void registerId(Tag tag) {
+        synchronized (tagIdLock) {
+            if (tag.getId() >= tagsById.length) {
+                tagsById = Arrays.copyOf(tagsById, Math.max(tagsById.length * 2, tag.getId() + 1));
+            }
+            tagsById[tag.getId()] = tag;
+        }
+    }
+
+    private void unregisterId(Tag tag) {
+        synchronized (tagIdLock) {
+            tagsById[tag.getId()] = null;
+        }
+    }
+
+    /**
+     * @param tag
+     * @return The files with this tag, in id order. Caller must hold the
+     *         tag's stripe.
+     */
+    private List<TaggedFile> filesOf(Tag tag) {
+        return filesOf(tag.copyFileIds());
+    }
+
+    private List<TaggedFile> filesOf(BitSet ids) {
+        List<TaggedFile> files = new ArrayList<>(ids.cardinality());
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            files.add(filesById[id]);
+        }
+        return files;
+    }
+
+    /**
+     * @param file
+     * @return The tags on this file, in id order. Caller must hold the
+     *         file's stripe.
+     */
+    private List<Tag> tagsOf(TaggedFile file) {
+        int[] ids = file.getTagIds();
+        List<Tag> tagList = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            tagList.add(tagsById[id]);
+        }
+        return tagList;
+    }
+
+    /**
+     * Links files to tags straight from the snapshot's id arrays, without
+     * going through tagFile. Only called from init, before the manager is
+     * shared.
+     *
+     * @param snapshot
+     */
+    private void loadSnapshot(TagSnapshot snapshot) {
+        Tag[] byId = new Tag[snapshot.getTagCount()];
+        List<Tag> restored = new ArrayList<>(byId.length);
+        for (int i = 0; i < byId.length; i++) {
+            byId[i] = new Tag(nextTagId.getAndIncrement(), snapshot.getTagName(i));
+            tags.put(byId[i].getName(), byId[i]);
+            registerId(byId[i]);
+            restored.add(byId[i]);
+        }
+        tagSnapshot.updateAndGet(list -> {
+            List<Tag> copy = new ArrayList<>(list);
+            copy.addAll(restored);
+            return Collections.unmodifiableList(copy);
+        });
+
+        Tag unTagged = findTag("untagged");
+        for (int f = 0; f < snapshot.getFileCount(); f++) {
+            TaggedFile fileObj = findFile(snapshot.getFilePath(f));
+            if (fileObj == null) {
+                continue;
+            } //no longer exists
+            fileObj.removeTag(unTagged);
+            unTagged.removeFile(fileObj);
+            IntBuffer ids = snapshot.getFileTags(f);
+            while (ids.hasRemaining()) {
+                Tag tagObj = byId[ids.get()];
+                fileObj.addTag(tagObj);
+                tagObj.addFile(fileObj);
+            }
+        }
+    }
+
+    /**
+     * @param list
+     * @param item
+     * @return An immutable copy of list with item appended
+     */
+    private static <T> List<T> with(List<T> list, T item) {
+        List<T> copy = new ArrayList<>(list.size() + 1);
+        copy.addAll(list);
+        copy.add(item);
+        return Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * @param list
+     * @param item
+     * @return An immutable copy of list with item removed
+     */
+    private static <T> List<T> without(List<T> list, T item) {
+        List<T> copy = new ArrayList<>(list);
+        copy.remove(item);
+        return Collections.unmodifiableList(copy);
+    }
+
         /**
          * 
          * @param tag
-         * @return Tag found in list of tags
+         * @return Tag found in the tag index, or null
          */
         public Tag findTag(String tag){
-            
-            for(Tag tagObj : tags){ //Find tag
-                if(tagObj.getName().equals(tag)){
-                    return tagObj;
-                }
-            }
-            
-            return null;
+            return tags.get(tag);
         }
         
         public boolean tagExists(String tag){
-            
-            for(Tag tagObj : tags){ //Find tag
-                if(tagObj.getName().equals(tag)){
-                    return true;
-                }
-            }
-            
-            return false;
+            return tags.containsKey(tag);
         }
         /**
          * 
          * @param file
-         * @return File found in list of taggedfiles
+         * @return File found in the index of taggedfiles, or null
          */
         public TaggedFile findFile(String file){
-            
-            for(TaggedFile fileObj : taggedFiles){ //Find file from list of tagged files
-                if(fileObj.getName().equals(file)){
-                    return fileObj;
-                }
-            }
-            
-            return null;
-            
+            return taggedFiles.get(file);
         }
 
         public boolean fileExists(String file){
-            
-            for(TaggedFile fileObj : taggedFiles){ //Find file from list of tagged files
-                if(fileObj.getName().equals(file)){
-                    return true;
-                }
-            }
-            
-            return false;
-            
+            return taggedFiles.containsKey(file);
         }
 }
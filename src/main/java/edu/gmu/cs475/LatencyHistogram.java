@@ -0,0 +1,155 @@
+package edu.gmu.cs475;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A histogram of latencies in nanoseconds, in the style of HdrHistogram:
+ * buckets are spaced logarithmically, each split into 32 linear
+ * sub-buckets, so every recorded value is kept to within about 3% no matter
+ * its magnitude, in a fixed amount of memory.
+ *
+ * Recording is lock free and meant for hot paths. Each thread records into
+ * one of several shards picked by its thread id, so threads timing the same
+ * operation don't all increment the same counters. Reads add the shards up
+ * and are only approximately consistent with concurrent recording.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 6;
+	private static final int SUB_COUNT = 1 << (SUB_BITS - 1);// sub-buckets per bucket above the first
+	private static final int MAX_BITS = 44;// ~4.9 hours; longer values are clamped
+	private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT + SUB_COUNT;
+	private static final int SUM = BUCKETS;// shard slots after the buckets
+	private static final int MAX = BUCKETS + 1;
+	private static final int SHARDS = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+
+	private final AtomicReferenceArray<AtomicLongArray> shards = new AtomicReferenceArray<>(SHARDS);
+
+	/**
+	 * @param nanos
+	 *            A latency; negative values count as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, Math.min(nanos, (1L << MAX_BITS) - 1));
+		AtomicLongArray shard = shard();
+		shard.incrementAndGet(index(value));
+		shard.addAndGet(SUM, value);
+		long max;
+		while (value > (max = shard.get(MAX)) && !shard.compareAndSet(MAX, max, value))
+			;
+	}
+
+	/**
+	 * Records the time since a System.nanoTime() reading
+	 *
+	 * @param startNanos
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (long c : merge())
+			count += c;
+		return count;
+	}
+
+	public long getMax() {
+		long max = 0;
+		for (int i = 0; i < SHARDS; i++) {
+			AtomicLongArray shard = shards.get(i);
+			if (shard != null)
+				max = Math.max(max, shard.get(MAX));
+		}
+		return max;
+	}
+
+	public double getMean() {
+		long count = getCount();
+		if (count == 0)
+			return 0;
+		long sum = 0;
+		for (int i = 0; i < SHARDS; i++) {
+			AtomicLongArray shard = shards.get(i);
+			if (shard != null)
+				sum += shard.get(SUM);
+		}
+		return (double) sum / count;
+	}
+
+	/**
+	 * @param percentile
+	 *            From 0 to 100
+	 * @return The largest value (to within the histogram's precision) that at
+	 *         least this percentage of recorded values are at or below, or 0
+	 *         if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] counts = merge();
+		long total = 0;
+		for (long c : counts)
+			total += c;
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(highestValue(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * Forgets everything recorded so far
+	 */
+	public void reset() {
+		for (int i = 0; i < SHARDS; i++)
+			shards.set(i, null);
+	}
+
+	private AtomicLongArray shard() {
+		int i = (int) Thread.currentThread().getId() & (SHARDS - 1);
+		AtomicLongArray shard = shards.get(i);
+		if (shard == null) {
+			shards.compareAndSet(i, null, new AtomicLongArray(BUCKETS + 2));
+			shard = shards.get(i);
+		}
+		return shard;
+	}
+
+	private long[] merge() {
+		long[] counts = new long[BUCKETS];
+		for (int s = 0; s < SHARDS; s++) {
+			AtomicLongArray shard = shards.get(s);
+			if (shard == null)
+				continue;
+			for (int i = 0; i < BUCKETS; i++)
+				counts[i] += shard.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * Values below 2^SUB_BITS each get their own slot. Above that, the
+	 * highest bit picks the bucket and the next SUB_BITS - 1 bits the
+	 * sub-bucket.
+	 */
+	static int index(long value) {
+		if (value < (SUB_COUNT << 1))
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+		return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+	}
+
+	static long highestValue(int index) {
+		if (index < (SUB_COUNT << 1))
+			return index;
+		int shift = index / SUB_COUNT - 1;
+		long sub = index % SUB_COUNT + SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+}
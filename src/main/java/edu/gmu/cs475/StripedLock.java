@@ -0,0 +1,281 @@
+package edu.gmu.cs475;
+
+import java.util.BitSet;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A fixed array of StampedLocks, with keys (tag names, file paths) hashed
+ * onto them. Operations on keys that land on different stripes never wait on
+ * each other.
+ *
+ * An operation that needs several stripes always locks them in ascending
+ * stripe index order, the same way FileLockSet orders files by id, so two
+ * operations over overlapping keys can't deadlock. Operations on the whole
+ * registry lock every stripe.
+ */
+public class StripedLock {
+
+	public static final int DEFAULT_STRIPES = 64;
+
+	/**
+	 * A read that may first run without holding any lock, so it can see a
+	 * write half applied. It may then return a wrong result or throw, but
+	 * must not loop forever, have side effects, block indefinitely or take
+	 * locks that writers hold while holding a stripe; the result is only
+	 * used once the stripes are validated.
+	 */
+	public interface Read<T, E extends Exception> {
+		T read() throws E;
+	}
+
+	/**
+	 * Told how long each acquisition waited and held its stripes, and how
+	 * each optimistic read went. Called on the locking thread, so it must be
+	 * cheap.
+	 */
+	public interface Listener {
+		void acquired(long waitNanos);
+
+		void released(long holdNanos);
+
+		void optimisticRead(boolean validated);
+	}
+
+	private final StampedLock[] stripes;
+	private final int mask;
+	private final Listener listener;
+
+	/**
+	 * @param stripes
+	 *            Number of stripes, rounded up to a power of two
+	 */
+	public StripedLock(int stripes) {
+		this(stripes, null);
+	}
+
+	/**
+	 * @param stripes
+	 *            Number of stripes, rounded up to a power of two
+	 * @param listener
+	 *            Notified of lock timings, or null. Without one nothing is
+	 *            timed.
+	 */
+	public StripedLock(int stripes, Listener listener) {
+		this.listener = listener;
+		int n = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+		this.stripes = new StampedLock[n];
+		for (int i = 0; i < n; i++) {
+			this.stripes[i] = new StampedLock();
+		}
+		this.mask = n - 1;
+	}
+
+	/**
+	 * @param key
+	 * @return Index of the stripe guarding that key
+	 */
+	public int stripeOf(Object key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & mask;// like HashMap, so keys differing only in high bits still spread
+	}
+
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	public StampedLock getStripe(int index) {
+		return stripes[index];
+	}
+
+	/**
+	 * Locks the stripe of a single key
+	 *
+	 * @param key
+	 * @param forWrite
+	 *            True if the write lock is requested, else false
+	 * @return The held lock, to be released with {@link Held#close()}
+	 */
+	public Held acquire(Object key, boolean forWrite) {
+		BitSet indexes = new BitSet(stripes.length);
+		indexes.set(stripeOf(key));
+		return acquire(indexes, forWrite);
+	}
+
+	/**
+	 * Locks the stripes of two keys, e.g. a tag and a file
+	 *
+	 * @param first
+	 * @param second
+	 * @param forWrite
+	 *            True if write locks are requested, else false
+	 * @return The held locks, to be released with {@link Held#close()}
+	 */
+	public Held acquire(Object first, Object second, boolean forWrite) {
+		BitSet indexes = new BitSet(stripes.length);
+		indexes.set(stripeOf(first));
+		indexes.set(stripeOf(second));
+		return acquire(indexes, forWrite);
+	}
+
+	/**
+	 * Locks a set of stripes in ascending order, blocking until all of them
+	 * are held
+	 *
+	 * @param indexes
+	 *            Indexes of the stripes to lock
+	 * @param forWrite
+	 *            True if write locks are requested, else false
+	 * @return The held locks, to be released with {@link Held#close()}
+	 */
+	public Held acquire(BitSet indexes, boolean forWrite) {
+		Held held = new Held(indexes.cardinality(), forWrite);
+		long start = listener == null ? 0 : System.nanoTime();
+		try {
+			for (int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1)) {
+				held.indexes[held.count] = i;
+				held.stamps[held.count] = forWrite ? stripes[i].writeLock() : stripes[i].readLock();
+				held.count++;
+			}
+		} catch (RuntimeException | Error e) {
+			held.close();
+			throw e;
+		}
+		if (listener != null) {
+			held.acquiredAt = System.nanoTime();
+			listener.acquired(held.acquiredAt - start);
+		}
+		return held;
+	}
+
+	/**
+	 * Locks every stripe, excluding every operation that holds any of them
+	 *
+	 * @param forWrite
+	 *            True if write locks are requested, else false
+	 * @return The held locks, to be released with {@link Held#close()}
+	 */
+	public Held acquireAll(boolean forWrite) {
+		BitSet indexes = new BitSet(stripes.length);
+		indexes.set(0, stripes.length);
+		return acquire(indexes, forWrite);
+	}
+
+	/**
+	 * Runs a read of the data guarded by a key's stripe. The read is first
+	 * tried optimistically, without locking; its result (or exception) is
+	 * only passed on if no write on that stripe overlapped it. Otherwise it
+	 * runs again holding the stripe's read lock.
+	 *
+	 * @param key
+	 * @param read
+	 * @return The read's result
+	 * @throws E
+	 *             If the read throws, and the state it saw was consistent
+	 */
+	public <T, E extends Exception> T read(Object key, Read<T, E> read) throws E {
+		StampedLock lock = stripes[stripeOf(key)];
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				T result = read.read();
+				if (validated(lock.validate(stamp)))
+					return result;
+			} catch (Exception e) {
+				if (validated(lock.validate(stamp)))
+					throw e;// a genuine failure, e.g. no such tag
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return read.read();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Like {@link #read(Object, Read)}, for a read that needs every stripe to
+	 * be stable at once
+	 *
+	 * @param read
+	 * @return The read's result
+	 * @throws E
+	 *             If the read throws, and the state it saw was consistent
+	 */
+	public <T, E extends Exception> T readAll(Read<T, E> read) throws E {
+		long[] stamps = new long[stripes.length];
+		boolean optimistic = true;
+		for (int i = 0; i < stripes.length && optimistic; i++) {
+			stamps[i] = stripes[i].tryOptimisticRead();
+			optimistic = stamps[i] != 0;
+		}
+		if (optimistic) {
+			try {
+				T result = read.read();
+				if (validated(validateAll(stamps)))
+					return result;
+			} catch (Exception e) {
+				if (validated(validateAll(stamps)))
+					throw e;
+			}
+		}
+		try (Held held = acquireAll(false)) {
+			return read.read();
+		}
+	}
+
+	private boolean validateAll(long[] stamps) {
+		for (int i = 0; i < stripes.length; i++) {
+			if (!stripes[i].validate(stamps[i]))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean validated(boolean validated) {
+		if (listener != null)
+			listener.optimisticRead(validated);
+		return validated;
+	}
+
+	/**
+	 * A set of stripes held together
+	 */
+	public class Held implements AutoCloseable {
+		private final int[] indexes;
+		private final long[] stamps;
+		private final boolean forWrite;
+		private int count;
+		private long acquiredAt;
+
+		private Held(int size, boolean forWrite) {
+			this.indexes = new int[size];
+			this.stamps = new long[size];
+			this.forWrite = forWrite;
+		}
+
+		public boolean isForWrite() {
+			return forWrite;
+		}
+
+		/**
+		 * Releases every held stripe, in the reverse order of acquisition
+		 */
+		@Override
+		public void close() {
+			if (listener != null && acquiredAt != 0) {
+				listener.released(System.nanoTime() - acquiredAt);
+				acquiredAt = 0;
+			}
+			while (count > 0) {
+				count--;
+				StampedLock lock = stripes[indexes[count]];
+				if (forWrite) {
+					lock.unlockWrite(stamps[count]);
+				} else {
+					lock.unlockRead(stamps[count]);
+				}
+			}
+		}
+	}
+}
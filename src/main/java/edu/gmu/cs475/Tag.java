@@ -1,24 +1,35 @@
 package edu.gmu.cs475;
 
+import java.util.BitSet;
 import java.util.HashSet;
-import java.util.List;
 import java.util.concurrent.locks.StampedLock;
 
 import edu.gmu.cs475.struct.ITag;
-import java.util.ArrayList;
 
 public class Tag implements ITag {
-	public List<TaggedFile> files = new ArrayList<>();
+	// Ids of the files with this tag; FileTagManager maps them back to files.
+	// Files join and leave "untagged" under their own lock stripes rather than
+	// the tag's, so the bitmap is also guarded by this object's monitor.
+	final BitSet fileIds = new BitSet();
 
 	private StampedLock lock = new StampedLock();
 
-	private String name;
+	private final int id;
+	private volatile String name;// renamed by editTag while other threads read it
 
-	public Tag(String name) {
+	public Tag(int id, String name) {
+		this.id = id;
 		this.name = name;
 
 	}
 
+	/**
+	 * @return Dense id of this tag, as stored in TaggedFile
+	 */
+	public int getId() {
+		return id;
+	}
+
 	
 
 	@Override
@@ -46,9 +57,42 @@ public class Tag implements ITag {
         
         
 
-	public Boolean hasFiles() {
+	/**
+	 * @param file
+	 * @return true if the file was added, false if it already had this tag
+	 */
+	public synchronized boolean addFile(TaggedFile file) {
+		if (fileIds.get(file.getId()))
+			return false;
+		fileIds.set(file.getId());
+		return true;
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file was removed, false if it didn't have this tag
+	 */
+	public synchronized boolean removeFile(TaggedFile file) {
+		if (!fileIds.get(file.getId()))
+			return false;
+		fileIds.clear(file.getId());
+		return true;
+	}
+
+	public synchronized boolean hasFile(TaggedFile file) {
+		return fileIds.get(file.getId());
+	}
+
+	/**
+	 * @return A copy of the ids of the files with this tag
+	 */
+	public synchronized BitSet copyFileIds() {
+		return (BitSet) fileIds.clone();
+	}
+
+	public synchronized Boolean hasFiles() {
 		
-			if(this.files.isEmpty()){
+			if(this.fileIds.isEmpty()){
 				return false;}
                         else{
 				return true;
@@ -0,0 +1,470 @@
+package edu.gmu.cs475;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of tag mutations, so that tags survive restarts.
+ *
+ * Every mutation is appended to tags.log while the caller still holds the
+ * lock that orders it, and made durable by a single flusher thread: all
+ * records appended while one fsync is in flight are written and synced
+ * together by the next one (group commit). Every so often the whole tag state
+ * is written to tags.snapshot and the log is truncated, so replay on startup
+ * only has to read the snapshot plus a short tail of the log.
+ *
+ * Each log starts with a generation number, and compaction starts the next
+ * generation by appending a marker record. A snapshot records the generation
+ * it covers, so a crash between writing the snapshot and truncating the log
+ * can not make replay apply the same records twice. The state to snapshot is
+ * copied when the marker is appended; writing it happens afterwards, while
+ * new operations keep being logged in the next generation.
+ */
+public class TagJournal implements Closeable {
+
+	public static final byte ADD_TAG = 1;
+	public static final byte EDIT_TAG = 2;
+	public static final byte DELETE_TAG = 3;
+	public static final byte TAG_FILE = 4;
+	public static final byte REMOVE_TAG = 5;
+	public static final byte REMOVE_FILE = 6;
+	private static final byte NEXT_GENERATION = 0;// never passed to Replay
+
+	public static final int DEFAULT_COMPACT_EVERY = 10000;
+
+	static final String LOG_NAME = "tags.log";
+	static final String SNAPSHOT_NAME = "tags.snapshot";
+	private static final int LOG_MAGIC = 0x7461674c;// "tagL"
+	private static final int LOG_HEADER_SIZE = 12;
+
+	/**
+	 * Receives the operations read back by {@link TagJournal#replay(Replay)}
+	 */
+	public interface Replay {
+		void apply(byte op, String[] args);
+	}
+
+	private final Path dir;
+	private FileChannel log;// guarded by logWrite once the flusher runs
+	private final int compactEvery;
+	private final Thread flusher;
+	private final Object logWrite = new Object();// held while writing to or truncating the log
+	private final AtomicBoolean compacting = new AtomicBoolean();
+
+	// Guarded by this
+	private List<ByteBuffer> pending = new ArrayList<>();
+	private long appended;
+	private long durable;
+	private long sinceSnapshot;
+	private long generation;// of the records appended now
+	private IOException failure;
+	private IOException compactionFailure;
+	private ByteBuffer marker;// record starting the current generation, until the flusher wrote it
+	private long markerEnd;// log position right after that record
+	private boolean closed;
+
+	/**
+	 * Opens (creating if needed) the journal in a directory
+	 *
+	 * @param dir
+	 *            Directory holding tags.log and tags.snapshot
+	 * @param compactEvery
+	 *            Number of logged operations after which the log is compacted
+	 *            into a new snapshot
+	 * @throws IOException
+	 */
+	public TagJournal(Path dir, int compactEvery) throws IOException {
+		this.dir = Files.createDirectories(dir);
+		this.compactEvery = compactEvery;
+		this.log = FileChannel.open(dir.resolve(LOG_NAME), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if (log.size() < LOG_HEADER_SIZE) {
+			writeLogHeader(readSnapshotGeneration() + 1);
+		} else {
+			ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+			log.read(header, 0);
+			header.flip();
+			if (header.getInt() != LOG_MAGIC)
+				throw new IOException(dir.resolve(LOG_NAME) + " is not a tag journal");
+			generation = header.getLong();
+			log.position(log.size());
+		}
+		flusher = new Thread(this::flushLoop, "TagJournal-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	public static TagJournal open(Path dir) throws IOException {
+		return new TagJournal(dir, DEFAULT_COMPACT_EVERY);
+	}
+
+	/**
+	 * Queues an operation to be logged. Must be called while holding the lock
+	 * that orders this operation against conflicting ones, so that the log
+	 * order matches the order in which operations were applied.
+	 *
+	 * @param op
+	 *            One of the operation codes above
+	 * @param args
+	 *            Tag names and file paths of the operation
+	 * @return Sequence number to pass to {@link #sync(long)}
+	 */
+	public synchronized long append(byte op, String... args) {
+		if (closed)
+			throw new IllegalStateException("journal is closed");
+		pending.add(encode(op, args));
+		sinceSnapshot++;
+		notifyAll();
+		return ++appended;
+	}
+
+	/**
+	 * Waits until an appended operation is on disk. Should be called after
+	 * releasing any locks, so that other operations can join the same fsync.
+	 *
+	 * @param seq
+	 *            Sequence number returned by {@link #append(byte, String...)}
+	 * @throws UncheckedIOException
+	 *             if the log could not be written
+	 */
+	public synchronized void sync(long seq) {
+		boolean interrupted = false;
+		while (durable < seq && failure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;//the operation is already applied, so keep waiting for it to be durable
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (durable < seq)
+			throw new UncheckedIOException("Could not write tag journal", failure);
+	}
+
+	/**
+	 * @return True if enough operations were logged since the last snapshot
+	 *         that the log should be compacted, and no compaction is running
+	 */
+	public synchronized boolean needsCompaction() {
+		return sinceSnapshot >= compactEvery && !compacting.get();
+	}
+
+	/**
+	 * Starts a compaction: copies the given state and ends the current log
+	 * generation. The caller must make sure no operation is applied or
+	 * appended while this runs, so the copy holds exactly the operations
+	 * logged before it; this only reads memory. The copy is then written by
+	 * {@link Compaction#finish()}, which needs no locks.
+	 *
+	 * @param tags
+	 *            All tags
+	 * @param files
+	 *            All files
+	 * @return The compaction to finish, or null if another one is running
+	 */
+	public Compaction startCompaction(Iterable<Tag> tags, Iterable<TaggedFile> files) {
+		if (!compacting.compareAndSet(false, true))
+			return null;
+		try {
+			long covered;
+			long markerSeq;
+			long logged;
+			synchronized (this) {
+				if (closed)
+					throw new IllegalStateException("journal is closed");
+				covered = generation;
+				generation = covered + 1;
+				logged = sinceSnapshot;
+				marker = encode(NEXT_GENERATION, new String[] { Long.toString(generation) });
+				pending.add(marker);
+				notifyAll();
+				markerSeq = ++appended;
+			}
+			return new Compaction(covered, markerSeq, logged, TagSnapshot.copy(tags, files));
+		} catch (RuntimeException | Error e) {
+			compacting.set(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * A snapshot copied by {@link TagJournal#startCompaction(Iterable, Iterable)},
+	 * not yet written
+	 */
+	public final class Compaction {
+		private final long covered;
+		private final long markerSeq;
+		private final long logged;
+		private final TagSnapshot.Contents contents;
+
+		private Compaction(long covered, long markerSeq, long logged, TagSnapshot.Contents contents) {
+			this.covered = covered;
+			this.markerSeq = markerSeq;
+			this.logged = logged;
+			this.contents = contents;
+		}
+
+		/**
+		 * Writes and syncs the snapshot, then cuts the records it covers off
+		 * the log. Must be called exactly once. On failure the log is left
+		 * intact, the failure is kept for {@link TagJournal#getCompactionFailure()},
+		 * and the next compaction covers these records too.
+		 *
+		 * @throws IOException
+		 */
+		public void finish() throws IOException {
+			try {
+				sync(markerSeq);
+				long markerEnd;
+				synchronized (TagJournal.this) {
+					markerEnd = TagJournal.this.markerEnd;
+				}
+				Path tmp = dir.resolve(SNAPSHOT_NAME + ".tmp");
+				TagSnapshot.write(tmp, covered, contents);
+				Files.move(tmp, dir.resolve(SNAPSHOT_NAME), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				dropCovered(covered + 1, markerEnd);
+				synchronized (TagJournal.this) {
+					sinceSnapshot -= logged;
+					compactionFailure = null;
+				}
+			} catch (IOException | UncheckedIOException e) {
+				IOException cause = e instanceof IOException ? (IOException) e : ((UncheckedIOException) e).getCause();
+				synchronized (TagJournal.this) {
+					compactionFailure = cause;
+				}
+				throw cause;
+			} finally {
+				compacting.set(false);
+			}
+		}
+	}
+
+	/**
+	 * @return Why the latest compaction failed, or null if it succeeded (or
+	 *         none ran yet)
+	 */
+	public synchronized IOException getCompactionFailure() {
+		return compactionFailure;
+	}
+
+	/**
+	 * @return The latest snapshot, or null if none was written yet
+	 * @throws IOException
+	 */
+	public TagSnapshot openSnapshot() throws IOException {
+		Path snapshot = dir.resolve(SNAPSHOT_NAME);
+		return Files.exists(snapshot) ? TagSnapshot.open(snapshot) : null;
+	}
+
+	/**
+	 * Reads back every operation logged since the latest snapshot, in order.
+	 * A torn record at the end of the log (from a crash mid-write) ends the
+	 * replay and is cut off. Must be called once, before anything is
+	 * appended.
+	 *
+	 * @param target
+	 *            Receives each operation
+	 * @throws IOException
+	 */
+	public void replay(Replay target) throws IOException {
+		long covered = readSnapshotGeneration();
+		synchronized (logWrite) {
+			long position = LOG_HEADER_SIZE;
+			long size = log.size();
+			ByteBuffer frame = ByteBuffer.allocate(8);
+			CRC32 crc = new CRC32();
+			while (position + 8 <= size) {
+				frame.clear();
+				log.read(frame, position);
+				frame.flip();
+				int length = frame.getInt();
+				int checksum = frame.getInt();
+				if (length < 0 || position + 8 + length > size)
+					break;
+				ByteBuffer payload = ByteBuffer.allocate(length);
+				while (payload.hasRemaining() && log.read(payload, position + 8 + payload.position()) >= 0)
+					;
+				crc.reset();
+				crc.update(payload.array(), 0, length);
+				if ((int) crc.getValue() != checksum)
+					break;
+				position += 8 + length;
+				if (payload.get(0) == NEXT_GENERATION) {
+					synchronized (this) {
+						generation = Long.parseLong(decode(payload.array())[0]);
+						markerEnd = position;
+					}
+				} else if (generation > covered) {
+					decode(payload.array(), target);// older records are already in the snapshot
+				}
+			}
+			if (position < size)
+				log.truncate(position);
+			log.position(position);
+		}
+	}
+
+	/**
+	 * Stops the flusher once every appended operation is durable
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (logWrite) {
+			log.close();
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			List<ByteBuffer> batch;
+			long upTo;
+			ByteBuffer mark;
+			synchronized (this) {
+				while (pending.isEmpty() && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// only close() stops the flusher
+					}
+				}
+				if (pending.isEmpty())
+					return;
+				batch = pending;
+				pending = new ArrayList<>();
+				upTo = appended;
+				mark = marker;
+			}
+			try {
+				long markEnd = -1;
+				synchronized (logWrite) {
+					ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+					long remaining = 0;
+					for (ByteBuffer b : buffers) {
+						remaining += b.remaining();
+						if (b == mark)
+							markEnd = log.position() + remaining;
+					}
+					while (remaining > 0)
+						remaining -= log.write(buffers);
+					log.force(false);
+				}
+				synchronized (this) {
+					if (markEnd >= 0) {
+						markerEnd = markEnd;
+						marker = null;
+					}
+					durable = upTo;
+					notifyAll();
+				}
+			} catch (IOException e) {
+				synchronized (this) {
+					failure = e;
+					notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	private void writeLogHeader(long newGeneration) throws IOException {
+		synchronized (logWrite) {
+			ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+			header.putInt(LOG_MAGIC).putLong(newGeneration).flip();
+			log.truncate(0);
+			log.write(header, 0);
+			log.position(LOG_HEADER_SIZE);
+			log.force(true);
+			generation = newGeneration;
+		}
+	}
+
+	/**
+	 * Replaces the log with one holding only the records from a position on,
+	 * e.g. those logged after a compaction started. The new log is written
+	 * next to the old one and moved over it, so a crash leaves one or the
+	 * other.
+	 */
+	private void dropCovered(long newGeneration, long from) throws IOException {
+		Path path = dir.resolve(LOG_NAME);
+		Path tmp = dir.resolve(LOG_NAME + ".tmp");
+		synchronized (logWrite) {
+			try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+				header.putInt(LOG_MAGIC).putLong(newGeneration).flip();
+				out.write(header);
+				long size = log.size();
+				while (from < size)
+					from += log.transferTo(from, size - from, out);
+				out.force(true);
+			}
+			Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			FileChannel old = log;
+			log = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			log.position(log.size());
+			old.close();
+		}
+	}
+
+	private long readSnapshotGeneration() throws IOException {
+		TagSnapshot snapshot = openSnapshot();
+		return snapshot == null ? 0 : snapshot.getGeneration();
+	}
+
+	private static ByteBuffer encode(byte op, String[] args) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(bytes);
+			data.writeInt(0);// length and checksum, filled in below
+			data.writeInt(0);
+			data.writeByte(op);
+			data.writeByte(args.length);
+			for (String arg : args)
+				data.writeUTF(arg);
+			ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+			CRC32 crc = new CRC32();
+			crc.update(frame.array(), 8, frame.limit() - 8);
+			frame.putInt(0, frame.limit() - 8);
+			frame.putInt(4, (int) crc.getValue());
+			return frame;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);// can't happen writing to memory
+		}
+	}
+
+	private static void decode(byte[] payload, Replay target) throws IOException {
+		target.apply(payload[0], decode(payload));
+	}
+
+	private static String[] decode(byte[] payload) throws IOException {
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+		data.readByte();// op
+		String[] args = new String[data.readByte()];
+		for (int i = 0; i < args.length; i++)
+			args[i] = data.readUTF();
+		return args;
+	}
+}
@@ -0,0 +1,46 @@
+package edu.gmu.cs475;
+
+import java.util.List;
+
+/**
+ * A tag's file list and the content locks of its files, held together, the
+ * way catAllFiles and echoToAllFiles hold them while they do their I/O.
+ *
+ * None of the underlying locks belong to a thread, so a TagLock may be
+ * released by a different thread than the one that acquired it, e.g. from
+ * the completion handler of an asynchronous read.
+ */
+public class TagLock implements AutoCloseable {
+
+	private final StripedLock.Held stripe;
+	private final FileLockSet files;
+
+	TagLock(StripedLock.Held stripe, FileLockSet files) {
+		this.stripe = stripe;
+		this.files = files;
+	}
+
+	/**
+	 * @return The tag's files, in the order catAllFiles concatenates them
+	 */
+	public List<TaggedFile> getFiles() {
+		return files.getFiles();
+	}
+
+	public boolean isForWrite() {
+		return files.isForWrite();
+	}
+
+	/**
+	 * Releases the file locks, then the tag's stripe. Must be called exactly
+	 * once.
+	 */
+	@Override
+	public void close() {
+		try {
+			files.close();
+		} finally {
+			stripe.close();
+		}
+	}
+}
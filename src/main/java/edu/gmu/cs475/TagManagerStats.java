@@ -0,0 +1,246 @@
+package edu.gmu.cs475;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for one FileTagManager: time spent in
+ * each of its methods, waiting for and holding lock stripes, waiting for
+ * file content locks, how often
+ * optimistic reads had to be retried, and bytes moved by catAll/echoAll.
+ */
+public class TagManagerStats implements TagManagerStatsMXBean, StripedLock.Listener {
+
+	/**
+	 * The timed FileTagManager methods
+	 */
+	public enum Op {
+		LIST_TAGS("listTags"), ADD_TAG("addTag"), EDIT_TAG("editTag"), DELETE_TAG("deleteTag"), INIT("init"),
+		ADD_FILES("addFiles"), REMOVE_FILES("removeFiles"), LIST_ALL_FILES("listAllFiles"),
+		LIST_FILES_BY_TAG("listFilesByTag"), LIST_FILES_BY_QUERY("listFilesByQuery"), TAG_FILE("tagFile"),
+		REMOVE_TAG("removeTag"), TAG_FILES("tagFiles"), REMOVE_TAGS("removeTags"), TAG_BY_PATTERN("tagByPattern"),
+		GET_TAGS("getTags"), CAT_ALL("catAllFiles"), CAT_ALL_TO_CHANNEL("catAllFilesToChannel"),
+		ECHO_ALL("echoToAllFiles"), APPEND_ALL("appendToAllFiles"), READ_RANGE("readFileRange"), TAIL("tail"),
+		LOCK_FILE("lockFile"), UNLOCK_FILE("unLockFile");
+
+		final String method;
+
+		Op(String method) {
+			this.method = method;
+		}
+	}
+
+	/**
+	 * A summary of a LatencyHistogram, in microseconds
+	 */
+	public static class LatencySummary {
+		private final long count;
+		private final double mean;
+		private final double p50;
+		private final double p90;
+		private final double p99;
+		private final double p999;
+		private final double max;
+
+		LatencySummary(LatencyHistogram h) {
+			count = h.getCount();
+			mean = h.getMean() / 1e3;
+			p50 = h.getValueAtPercentile(50) / 1e3;
+			p90 = h.getValueAtPercentile(90) / 1e3;
+			p99 = h.getValueAtPercentile(99) / 1e3;
+			p999 = h.getValueAtPercentile(99.9) / 1e3;
+			max = h.getMax() / 1e3;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getP50() {
+			return p50;
+		}
+
+		public double getP90() {
+			return p90;
+		}
+
+		public double getP99() {
+			return p99;
+		}
+
+		public double getP999() {
+			return p999;
+		}
+
+		public double getMax() {
+			return max;
+		}
+	}
+
+	private final LatencyHistogram[] operations = new LatencyHistogram[Op.values().length];
+	private final LatencyHistogram lockWait = new LatencyHistogram();
+	private final LatencyHistogram lockHold = new LatencyHistogram();
+	private final LatencyHistogram fileLockWait = new LatencyHistogram();
+	private final LongAdder optimisticReads = new LongAdder();
+	private final LongAdder optimisticReadFailures = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder compactionFailures = new LongAdder();
+	private final LongAdder watcherFailures = new LongAdder();
+
+	public TagManagerStats() {
+		for (int i = 0; i < operations.length; i++)
+			operations[i] = new LatencyHistogram();
+	}
+
+	/**
+	 * Records one call of a method
+	 *
+	 * @param op
+	 * @param startNanos
+	 *            System.nanoTime() when the call started
+	 */
+	public void record(Op op, long startNanos) {
+		operations[op.ordinal()].recordSince(startNanos);
+	}
+
+	public LatencyHistogram getHistogram(Op op) {
+		return operations[op.ordinal()];
+	}
+
+	/**
+	 * @return Where waits for file content locks are recorded
+	 */
+	public LatencyHistogram getFileLockWaitHistogram() {
+		return fileLockWait;
+	}
+
+	public void addBytesRead(long bytes) {
+		bytesRead.add(bytes);
+	}
+
+	public void addBytesWritten(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	public void compactionFailed() {
+		compactionFailures.increment();
+	}
+
+	public void watcherFailed() {
+		watcherFailures.increment();
+	}
+
+	@Override
+	public void acquired(long waitNanos) {
+		lockWait.record(waitNanos);
+	}
+
+	@Override
+	public void released(long holdNanos) {
+		lockHold.record(holdNanos);
+	}
+
+	@Override
+	public void optimisticRead(boolean validated) {
+		optimisticReads.increment();
+		if (!validated)
+			optimisticReadFailures.increment();
+	}
+
+	@Override
+	public Map<String, LatencySummary> getOperationLatencies() {
+		Map<String, LatencySummary> latencies = new TreeMap<>();
+		for (Op op : Op.values()) {
+			LatencyHistogram h = operations[op.ordinal()];
+			if (h.getCount() > 0)
+				latencies.put(op.method, new LatencySummary(h));
+		}
+		return latencies;
+	}
+
+	@Override
+	public LatencySummary getLockWait() {
+		return new LatencySummary(lockWait);
+	}
+
+	@Override
+	public LatencySummary getLockHold() {
+		return new LatencySummary(lockHold);
+	}
+
+	@Override
+	public LatencySummary getFileLockWait() {
+		return new LatencySummary(fileLockWait);
+	}
+
+	@Override
+	public long getOptimisticReads() {
+		return optimisticReads.sum();
+	}
+
+	@Override
+	public long getOptimisticReadFailures() {
+		return optimisticReadFailures.sum();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getCompactionFailures() {
+		return compactionFailures.sum();
+	}
+
+	@Override
+	public long getWatcherFailures() {
+		return watcherFailures.sum();
+	}
+
+	@Override
+	public String report() {
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("%-22s %9s %10s %10s %10s %10s %10s %10s%n", "(us)", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+		for (Map.Entry<String, LatencySummary> e : getOperationLatencies().entrySet())
+			row(out, e.getKey(), e.getValue());
+		row(out, "lock wait", getLockWait());
+		row(out, "lock hold", getLockHold());
+		row(out, "file lock wait", getFileLockWait());
+		out.append(String.format("optimistic reads %d, failed validation %d%n", getOptimisticReads(), getOptimisticReadFailures()));
+		out.append(String.format("bytes read %d, bytes written %d%n", getBytesRead(), getBytesWritten()));
+		out.append(String.format("journal compaction failures %d, directory watcher failures %d", getCompactionFailures(), getWatcherFailures()));
+		return out.toString();
+	}
+
+	private static void row(StringBuilder out, String name, LatencySummary s) {
+		out.append(String.format("%-22s %9d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n", name, s.getCount(), s.getMean(), s.getP50(),
+				s.getP90(), s.getP99(), s.getP999(), s.getMax()));
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram h : operations)
+			h.reset();
+		lockWait.reset();
+		lockHold.reset();
+		fileLockWait.reset();
+		optimisticReads.reset();
+		optimisticReadFailures.reset();
+		bytesRead.reset();
+		bytesWritten.reset();
+		compactionFailures.reset();
+		watcherFailures.reset();
+	}
+}
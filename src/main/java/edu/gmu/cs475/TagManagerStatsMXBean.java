@@ -0,0 +1,68 @@
+package edu.gmu.cs475;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link TagManagerStats}. Latencies are in microseconds.
+ */
+public interface TagManagerStatsMXBean {
+
+	/**
+	 * @return Latency of every FileTagManager method called so far, by
+	 *         method name
+	 */
+	Map<String, TagManagerStats.LatencySummary> getOperationLatencies();
+
+	/**
+	 * @return How long threads waited to acquire lock stripes
+	 */
+	TagManagerStats.LatencySummary getLockWait();
+
+	/**
+	 * @return How long lock stripes were held once acquired
+	 */
+	TagManagerStats.LatencySummary getLockHold();
+
+	/**
+	 * @return How long threads waited to acquire the content locks of the
+	 *         files they read or write
+	 */
+	TagManagerStats.LatencySummary getFileLockWait();
+
+	long getOptimisticReads();
+
+	/**
+	 * @return Optimistic reads that failed validation and were retried under
+	 *         the read lock
+	 */
+	long getOptimisticReadFailures();
+
+	/**
+	 * @return Bytes read by catAllFiles
+	 */
+	long getBytesRead();
+
+	/**
+	 * @return Bytes written by echoToAllFiles
+	 */
+	long getBytesWritten();
+
+	/**
+	 * @return Journal compactions that failed, leaving the log to grow until
+	 *         one succeeds
+	 */
+	long getCompactionFailures();
+
+	/**
+	 * @return Batches of file system events a DirectoryWatcher failed to
+	 *         apply; each is followed by a full rescan
+	 */
+	long getWatcherFailures();
+
+	/**
+	 * @return Everything above as a text table
+	 */
+	String report();
+
+	void reset();
+}
@@ -0,0 +1,215 @@
+package edu.gmu.cs475;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Function;
+
+import edu.gmu.cs475.struct.NoSuchTagException;
+
+/**
+ * A parsed boolean expression over tag names, evaluated over the per-tag
+ * bitmaps of file ids. Each AND/OR/NOT costs one pass over the words of the
+ * bitmaps involved, no matter how many file objects they stand for.
+ *
+ * <pre>
+ * expr   := term (OR term)*
+ * term   := factor (AND factor)*
+ * factor := NOT factor | '(' expr ')' | tag
+ * </pre>
+ *
+ * The operators can also be written as |, &amp; and !. Tag names that contain
+ * spaces, parentheses or are themselves an operator go in double quotes.
+ */
+public abstract class TagQuery {
+
+	/**
+	 * @param query
+	 *            Expression to parse
+	 * @return The parsed expression
+	 * @throws IllegalArgumentException
+	 *             If the expression is malformed
+	 */
+	public static TagQuery parse(String query) {
+		Parser parser = new Parser(tokenize(query));
+		TagQuery parsed = parser.expr();
+		if (parser.pos < parser.tokens.size())
+			throw new IllegalArgumentException("Unexpected '" + parser.tokens.get(parser.pos).text + "' in query");
+		return parsed;
+	}
+
+	/**
+	 * @param bitmaps
+	 *            Returns the bitmap of file ids for a tag name, or null if
+	 *            there is no such tag. Each call must return a new bitmap,
+	 *            which the query then owns and may modify.
+	 * @param allFiles
+	 *            Bitmap of every file id, the universe for NOT
+	 * @return A new bitmap of the ids of the matching files
+	 * @throws NoSuchTagException
+	 *             If the expression names a tag that doesn't exist
+	 */
+	public abstract BitSet evaluate(Function<String, BitSet> bitmaps, BitSet allFiles) throws NoSuchTagException;
+
+	private static final class TagName extends TagQuery {
+		private final String name;
+
+		TagName(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public BitSet evaluate(Function<String, BitSet> bitmaps, BitSet allFiles) throws NoSuchTagException {
+			BitSet bitmap = bitmaps.apply(name);
+			if (bitmap == null)
+				throw new NoSuchTagException();
+			return bitmap;// already a private copy
+		}
+	}
+
+	private static final class Not extends TagQuery {
+		private final TagQuery operand;
+
+		Not(TagQuery operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		public BitSet evaluate(Function<String, BitSet> bitmaps, BitSet allFiles) throws NoSuchTagException {
+			BitSet result = (BitSet) allFiles.clone();
+			result.andNot(operand.evaluate(bitmaps, allFiles));
+			return result;
+		}
+	}
+
+	private static final class And extends TagQuery {
+		private final List<TagQuery> operands;
+
+		And(List<TagQuery> operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		public BitSet evaluate(Function<String, BitSet> bitmaps, BitSet allFiles) throws NoSuchTagException {
+			BitSet result = null;
+			List<TagQuery> negated = new ArrayList<>();
+			for (TagQuery operand : operands) {
+				if (operand instanceof Not) {
+					negated.add(((Not) operand).operand);// x AND NOT y is x.andNot(y), no complement needed
+				} else if (result == null) {
+					result = operand.evaluate(bitmaps, allFiles);
+				} else {
+					result.and(operand.evaluate(bitmaps, allFiles));
+				}
+			}
+			if (result == null)
+				result = (BitSet) allFiles.clone();
+			for (TagQuery operand : negated)
+				result.andNot(operand.evaluate(bitmaps, allFiles));
+			return result;
+		}
+	}
+
+	private static final class Or extends TagQuery {
+		private final List<TagQuery> operands;
+
+		Or(List<TagQuery> operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		public BitSet evaluate(Function<String, BitSet> bitmaps, BitSet allFiles) throws NoSuchTagException {
+			BitSet result = operands.get(0).evaluate(bitmaps, allFiles);
+			for (int i = 1; i < operands.size(); i++)
+				result.or(operands.get(i).evaluate(bitmaps, allFiles));
+			return result;
+		}
+	}
+
+	private static final class Token {
+		final String text;
+		final boolean quoted;
+
+		Token(String text, boolean quoted) {
+			this.text = text;
+			this.quoted = quoted;
+		}
+
+		boolean is(String op, String symbol) {
+			return !quoted && (text.equalsIgnoreCase(op) || text.equals(symbol));
+		}
+	}
+
+	private static List<Token> tokenize(String query) {
+		List<Token> tokens = new ArrayList<>();
+		int i = 0;
+		while (i < query.length()) {
+			char c = query.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '(' || c == ')' || c == '&' || c == '|' || c == '!') {
+				tokens.add(new Token(String.valueOf(c), false));
+				i++;
+			} else if (c == '"') {
+				int end = query.indexOf('"', i + 1);
+				if (end < 0)
+					throw new IllegalArgumentException("Unterminated quote in query");
+				tokens.add(new Token(query.substring(i + 1, end), true));
+				i = end + 1;
+			} else {
+				int start = i;
+				while (i < query.length() && !Character.isWhitespace(query.charAt(i)) && "()&|!\"".indexOf(query.charAt(i)) < 0)
+					i++;
+				tokens.add(new Token(query.substring(start, i), false));
+			}
+		}
+		return tokens;
+	}
+
+	private static final class Parser {
+		final List<Token> tokens;
+		int pos;
+
+		Parser(List<Token> tokens) {
+			this.tokens = tokens;
+		}
+
+		TagQuery expr() {
+			List<TagQuery> terms = new ArrayList<>();
+			terms.add(term());
+			while (pos < tokens.size() && tokens.get(pos).is("OR", "|")) {
+				pos++;
+				terms.add(term());
+			}
+			return terms.size() == 1 ? terms.get(0) : new Or(terms);
+		}
+
+		TagQuery term() {
+			List<TagQuery> factors = new ArrayList<>();
+			factors.add(factor());
+			while (pos < tokens.size() && tokens.get(pos).is("AND", "&")) {
+				pos++;
+				factors.add(factor());
+			}
+			return factors.size() == 1 ? factors.get(0) : new And(factors);
+		}
+
+		TagQuery factor() {
+			if (pos >= tokens.size())
+				throw new IllegalArgumentException("Query ends unexpectedly");
+			Token token = tokens.get(pos++);
+			if (token.is("NOT", "!"))
+				return new Not(factor());
+			if (token.is("(", "(")) {
+				TagQuery inner = expr();
+				if (pos >= tokens.size() || !tokens.get(pos).is(")", ")"))
+					throw new IllegalArgumentException("Missing ')' in query");
+				pos++;
+				return inner;
+			}
+			if (token.is("AND", "&") || token.is("OR", "|") || token.is(")", ")"))
+				throw new IllegalArgumentException("Unexpected '" + token.text + "' in query");
+			return new TagName(token.text);
+		}
+	}
+}
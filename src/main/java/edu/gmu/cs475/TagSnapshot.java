@@ -0,0 +1,274 @@
+package edu.gmu.cs475;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary image of every tag assignment, read through a
+ * MappedByteBuffer.
+ *
+ * Layout (all ints big-endian, strings UTF-8):
+ *
+ * <pre>
+ * int magic, int version, long generation
+ * int nStrings, int[nStrings + 1] string offsets
+ * int nTags,  int[nTags]  tag name string ids
+ * int nFiles, int[nFiles] file path string ids
+ * int[nFiles + 1] adjacency offsets, int[] tag ids of each file
+ * byte[] string data
+ * </pre>
+ *
+ * Nothing is decoded up front: names are only turned into Strings when asked
+ * for, and the tags of a file are read straight out of the mapped int array.
+ * Only files carrying at least one tag other than "untagged" are recorded.
+ */
+public class TagSnapshot {
+
+	private static final int MAGIC = 0x74616753;// "tagS"
+	private static final int VERSION = 2;
+
+	private final long generation;
+	private final IntBuffer ints;
+	private final ByteBuffer strings;
+	private final int stringOffsets;
+	private final int tagNames;
+	private final int nTags;
+	private final int filePaths;
+	private final int nFiles;
+	private final int adjacencyOffsets;
+	private final int adjacency;
+
+	private TagSnapshot(MappedByteBuffer map) throws IOException {
+		if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+			throw new IOException("Not a tag snapshot");
+		generation = map.getLong(8);
+		map.position(16);
+		ints = map.slice().asIntBuffer();
+
+		int at = 0;
+		int nStrings = ints.get(at++);
+		stringOffsets = at;
+		at += nStrings + 1;
+		nTags = ints.get(at++);
+		tagNames = at;
+		at += nTags;
+		nFiles = ints.get(at++);
+		filePaths = at;
+		at += nFiles;
+		adjacencyOffsets = at;
+		at += nFiles + 1;
+		adjacency = at;
+		at += ints.get(adjacencyOffsets + nFiles);
+
+		map.position(16 + at * 4);
+		strings = map.slice();
+	}
+
+	/**
+	 * Maps a snapshot file into memory
+	 *
+	 * @param path
+	 * @return The snapshot
+	 * @throws IOException
+	 *             if the file can't be read or is not a snapshot
+	 */
+	public static TagSnapshot open(Path path) throws IOException {
+		try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+			return new TagSnapshot(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()));// the mapping outlives the channel
+		}
+	}
+
+	/**
+	 * Everything a snapshot records, copied out of the live tags and files so
+	 * it can be written after their locks are released
+	 */
+	public static final class Contents {
+		private final List<byte[]> strings = new ArrayList<>();
+		private final List<Integer> tagNames = new ArrayList<>();
+		private final List<Integer> filePaths = new ArrayList<>();
+		private final List<int[]> fileTags = new ArrayList<>();
+		private int nAdjacency;
+
+		private Contents() {
+		}
+	}
+
+	/**
+	 * Copies the given tags and files. Only reads memory, so it is cheap
+	 * enough to run while every tag and file is locked.
+	 *
+	 * @param tags
+	 *            All tags
+	 * @param files
+	 *            All files
+	 * @return The copy, to pass to {@link #write(Path, long, Contents)}
+	 */
+	public static Contents copy(Iterable<Tag> tags, Iterable<TaggedFile> files) {
+		Contents c = new Contents();
+		Map<Integer, Integer> tagIds = new HashMap<>();// manager tag id -> snapshot tag id
+		for (Tag t : tags) {
+			if (t.getName().equals("untagged"))
+				continue;
+			tagIds.put(t.getId(), tagIds.size());
+			c.tagNames.add(c.strings.size());
+			c.strings.add(t.getName().getBytes(StandardCharsets.UTF_8));
+		}
+		for (TaggedFile f : files) {
+			int[] onFile = f.getTagIds();
+			int[] ids = new int[onFile.length];
+			int n = 0;
+			for (int t : onFile) {
+				Integer id = tagIds.get(t);
+				if (id != null)
+					ids[n++] = id;
+			}
+			if (n == 0)
+				continue;
+			c.filePaths.add(c.strings.size());
+			c.strings.add(f.getName().getBytes(StandardCharsets.UTF_8));
+			c.fileTags.add(Arrays.copyOf(ids, n));
+			c.nAdjacency += n;
+		}
+		return c;
+	}
+
+	/**
+	 * Writes a snapshot of the given tags and files
+	 *
+	 * @param path
+	 *            File to write
+	 * @param generation
+	 *            Journal generation this snapshot covers
+	 * @param tags
+	 *            All tags
+	 * @param files
+	 *            All files
+	 * @throws IOException
+	 */
+	public static void write(Path path, long generation, Iterable<Tag> tags, Iterable<TaggedFile> files) throws IOException {
+		write(path, generation, copy(tags, files));
+	}
+
+	/**
+	 * Writes a snapshot of previously copied tags and files, and syncs it to
+	 * disk
+	 *
+	 * @param path
+	 *            File to write
+	 * @param generation
+	 *            Journal generation this snapshot covers
+	 * @param contents
+	 *            From {@link #copy(Iterable, Iterable)}
+	 * @throws IOException
+	 */
+	public static void write(Path path, long generation, Contents contents) throws IOException {
+		List<byte[]> strings = contents.strings;
+		List<Integer> tagNames = contents.tagNames;
+		List<Integer> filePaths = contents.filePaths;
+		List<int[]> fileTags = contents.fileTags;
+		int nAdjacency = contents.nAdjacency;
+
+		try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16));
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeLong(generation);
+			data.writeInt(strings.size());
+			int offset = 0;
+			for (byte[] s : strings) {
+				data.writeInt(offset);
+				offset += s.length;
+			}
+			data.writeInt(offset);
+			data.writeInt(tagNames.size());
+			for (int id : tagNames)
+				data.writeInt(id);
+			data.writeInt(filePaths.size());
+			for (int id : filePaths)
+				data.writeInt(id);
+			offset = 0;
+			for (int[] ids : fileTags) {
+				data.writeInt(offset);
+				offset += ids.length;
+			}
+			data.writeInt(nAdjacency);
+			for (int[] ids : fileTags)
+				for (int id : ids)
+					data.writeInt(id);
+			for (byte[] s : strings)
+				data.write(s);
+			data.flush();
+			out.force(true);
+		}
+	}
+
+	/**
+	 * @return The journal generation this snapshot covers
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	public int getTagCount() {
+		return nTags;
+	}
+
+	/**
+	 * @param tag
+	 *            Tag id, from 0 to getTagCount() - 1
+	 * @return Name of that tag
+	 */
+	public String getTagName(int tag) {
+		return string(ints.get(tagNames + tag));
+	}
+
+	public int getFileCount() {
+		return nFiles;
+	}
+
+	/**
+	 * @param file
+	 *            File id, from 0 to getFileCount() - 1
+	 * @return Path of that file
+	 */
+	public String getFilePath(int file) {
+		return string(ints.get(filePaths + file));
+	}
+
+	/**
+	 * @param file
+	 *            File id, from 0 to getFileCount() - 1
+	 * @return Ids of the tags on that file, as a view of the mapped file
+	 */
+	public IntBuffer getFileTags(int file) {
+		int from = ints.get(adjacencyOffsets + file);
+		int to = ints.get(adjacencyOffsets + file + 1);
+		IntBuffer view = ints.duplicate();
+		view.position(adjacency + from).limit(adjacency + to);
+		return view.slice();
+	}
+
+	private String string(int id) {
+		int from = ints.get(stringOffsets + id);
+		int to = ints.get(stringOffsets + id + 1);
+		byte[] bytes = new byte[to - from];
+		ByteBuffer view = strings.duplicate();
+		view.position(from);
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
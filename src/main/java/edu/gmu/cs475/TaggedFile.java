@@ -1,26 +1,79 @@
 package edu.gmu.cs475;
 
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.concurrent.locks.StampedLock;
 
 import edu.gmu.cs475.struct.ITaggedFile;
-import java.util.ArrayList;
-import java.util.List;
 
 public class TaggedFile implements ITaggedFile {
 
-	public List<Tag> tags = new ArrayList<>();
-	public StampedLock lock = new StampedLock();
+	private int[] tagIds;// sorted ids of this file's tags; files rarely have more than a handful
+	public StampedLock lock = new StampedLock();// guards the file's contents, see lockFile
 	
 	public StampedLock getLock() {
 		return lock;
 	}
+	private final int id;
 	private Path path;
-	public TaggedFile(Path path, Tag tag)
+	public TaggedFile(int id, Path path, Tag tag)
 	{
+		this.id = id;
 		this.path = path;
-		this.tags.add(tag);
+		this.tagIds = new int[] { tag.getId() };
+	}
+	/**
+	 * @return The ids of this file's tags, in ascending order. Must not be
+	 *         modified.
+	 */
+	public int[] getTagIds() {
+		return tagIds;
+	}
+	public boolean hasTag(Tag tag) {
+		return Arrays.binarySearch(tagIds, tag.getId()) >= 0;
+	}
+	/**
+	 * @param tag
+	 * @return true if the tag was added, false if the file already had it
+	 */
+	public boolean addTag(Tag tag) {
+		int at = Arrays.binarySearch(tagIds, tag.getId());
+		if (at >= 0)
+			return false;
+		at = -at - 1;
+		int[] grown = new int[tagIds.length + 1];
+		System.arraycopy(tagIds, 0, grown, 0, at);
+		grown[at] = tag.getId();
+		System.arraycopy(tagIds, at, grown, at + 1, tagIds.length - at);
+		tagIds = grown;// copy on write, so an array handed out by getTagIds never changes
+		return true;
+	}
+	/**
+	 * @param tag
+	 * @return true if the tag was removed, false if the file didn't have it
+	 */
+	public boolean removeTag(Tag tag) {
+		int at = Arrays.binarySearch(tagIds, tag.getId());
+		if (at < 0)
+			return false;
+		int[] shrunk = new int[tagIds.length - 1];
+		System.arraycopy(tagIds, 0, shrunk, 0, at);
+		System.arraycopy(tagIds, at + 1, shrunk, at, shrunk.length - at);
+		tagIds = shrunk;
+		return true;
+	}
+	public boolean hasTags() {
+		return tagIds.length > 0;
+	}
+	/**
+	 * @return Stable id of this file, which also defines its lock order
+	 */
+	public int getId() {
+		return id;
+	}
+	public Path getPath() {
+		return path;
 	}
 	@Override
 	public String getName() {
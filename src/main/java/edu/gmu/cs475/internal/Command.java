@@ -1,45 +1,82 @@
 package edu.gmu.cs475.internal;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
 import java.nio.file.DirectoryNotEmptyException;
-import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.jline.utils.AttributedString;
 import org.jline.utils.AttributedStyle;
 import org.springframework.shell.standard.ShellComponent;
 import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellOption;
 
 import edu.gmu.cs475.FileTagManager;
 import edu.gmu.cs475.Tag;
+import edu.gmu.cs475.TagJournal;
+import edu.gmu.cs475.TagManagerStats;
 import edu.gmu.cs475.TaggedFile;
 import edu.gmu.cs475.AbstractFileTagManager;
 import edu.gmu.cs475.struct.NoSuchTagException;
 import edu.gmu.cs475.struct.ITag;
 import edu.gmu.cs475.struct.ITaggedFile;
 import edu.gmu.cs475.struct.TagExistsException;
+import edu.gmu.cs475.struct.TagOutcome;
 
 @ShellComponent
 public class Command {
 
     static final int SEQUENTIAL_THRESHOLD = 5000;
+	static final String STATS_MBEAN_NAME = "edu.gmu.cs475:type=FileTagManager,name=stats";
     
 	AbstractFileTagManager service = new FileTagManager();
+	DirectoryWatcher watcher;
 
 	public Command() {
-		service = new FileTagManager();
 		try {
+			String journalDir = System.getProperty("tagJournal");
+			service = journalDir == null ? new FileTagManager() : new FileTagManager(TagJournal.open(Paths.get(journalDir)));
+			String cacheBytes = System.getProperty("contentCache");
+			if (cacheBytes != null) {
+				((FileTagManager) service).setContentCache(Long.parseLong(cacheBytes));
+			}
 			service.init(listAllFiles());
+			watcher = DirectoryWatcher.start(AbstractFileTagManager.BASEDIR, (FileTagManager) service, DirectoryWatcher.DEFAULT_BATCH_MILLIS);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		registerStats(((FileTagManager) service).getStats());
+	}
+
+	/**
+	 * Publishes the manager's stats over JMX, e.g. for jconsole, replacing
+	 * those of an earlier Command in the same JVM
+	 */
+	private static void registerStats(TagManagerStats stats) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(STATS_MBEAN_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(stats, name);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
 	}
 
 	public static final List<Path> listAllFiles() throws IOException {
-		return Files.walk(AbstractFileTagManager.BASEDIR).filter(Files::isRegularFile).collect(Collectors.toList());
+		return ParallelFileWalker.walk(AbstractFileTagManager.BASEDIR, SEQUENTIAL_THRESHOLD);
 	}
 
 	@ShellMethod("List the files")
@@ -55,6 +92,21 @@ public class Command {
 		}
 	}
 
+	@ShellMethod("List the files matching a tag expression, e.g. \"prod AND errors AND NOT archived\"")
+	public CharSequence query(String expression) {
+		try {
+			StringBuilder ret = new StringBuilder();
+			for (ITaggedFile t : service.listFilesByQuery(expression)) {
+				ret.append(' ' + t.getName());
+			}
+			return ret.toString();
+		} catch (NoSuchTagException ex) {
+			return new AttributedString("Error: Query uses a tag that does not exist", AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+		} catch (IllegalArgumentException ex) {
+			return new AttributedString("Error: " + ex.getMessage(), AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+		}
+	}
+
 	@ShellMethod("List the tags")
 	public CharSequence tags() {
 		StringBuilder ret = new StringBuilder();
@@ -125,6 +177,69 @@ public class Command {
 		return null;
 	}
 
+	@ShellMethod("Add a tag to many files, given as a comma-separated list or a glob such as \"testdir/logs/**.gz\"")
+	public CharSequence tagFiles(String files, String tag) {
+		try {
+			if (isPattern(files))
+				return summarize(service.tagByPattern(files, tag), "Tagged");
+			return summarize(service.tagFiles(splitFiles(files), tag), "Tagged");
+		} catch (NoSuchTagException ex) {
+			return new AttributedString("Error: Tag " + tag + " does not exist", AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+		} catch (IllegalArgumentException ex) {
+			return new AttributedString("Error: " + ex.getMessage(), AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+		}
+	}
+
+	@ShellMethod("Remove a tag from many files, given as a comma-separated list or a glob")
+	public CharSequence removeTags(String files, String tag) {
+		try {
+			List<String> names = isPattern(files) ? ((FileTagManager) service).matchFiles(files) : splitFiles(files);
+			return summarize(service.removeTags(names, tag), "Untagged");
+		} catch (NoSuchTagException ex) {
+			return new AttributedString("Error: Tag " + tag + " does not exist", AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+		} catch (IllegalArgumentException ex) {
+			return new AttributedString("Error: " + ex.getMessage(), AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+		}
+	}
+
+	/**
+	 * @param files
+	 *            The files argument of tag-files or remove-tags
+	 * @return True if it is a glob or regex rather than a list of names
+	 */
+	public static boolean isPattern(String files) {
+		return files.startsWith("glob:") || files.startsWith("regex:") || files.matches(".*[*?\\[{].*");
+	}
+
+	/**
+	 * @param files
+	 *            A comma-separated list of file names
+	 * @return The names, trimmed, without empty ones
+	 */
+	public static List<String> splitFiles(String files) {
+		List<String> names = new ArrayList<>();
+		for (String name : files.split(",")) {
+			if (!name.trim().isEmpty())
+				names.add(name.trim());
+		}
+		return names;
+	}
+
+	private static CharSequence summarize(Map<String, TagOutcome> results, String verb) {
+		int changed = 0;
+		StringBuilder missing = new StringBuilder();
+		for (Map.Entry<String, TagOutcome> e : results.entrySet()) {
+			if (e.getValue() == TagOutcome.CHANGED)
+				changed++;
+			else if (e.getValue() == TagOutcome.NO_SUCH_FILE)
+				missing.append(' ' + e.getKey());
+		}
+		String summary = verb + " " + changed + " of " + results.size() + " files";
+		if (missing.length() == 0)
+			return summary;
+		return new AttributedString(summary + "; no such file:" + missing, AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+	}
+
 	@ShellMethod("List all tags on a file")
 	public CharSequence getTags(String file) {
 		try {
@@ -141,7 +256,9 @@ public class Command {
 	@ShellMethod("Cat a file")
 	public CharSequence cat(String file) {
 		try {
-			return service.readFile(file);
+			service.readFile(file, Channels.newChannel(System.out));//streamed under the file's read lock, small files from the cache
+			System.out.flush();
+			return null;
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -161,7 +278,9 @@ public class Command {
 	@ShellMethod("Cat all files matching a tag")
 	public CharSequence catAll(String tag) {
 		try {
-			return service.catAllFiles(tag);
+			service.catAllFiles(tag, Channels.newChannel(System.out));
+			System.out.flush();
+			return null;
 		} catch (NoSuchTagException ex) {
 			return new AttributedString("Error: Tag " + tag + " does not exist", AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
 		} catch (IOException e) {
@@ -180,4 +299,44 @@ public class Command {
 			return new AttributedString("Error: " + e.getMessage(), AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
 		}
 	}
+
+	@ShellMethod("Append text to the end of all files matching a tag")
+	public CharSequence appendAll(String tag, String text) {
+		try {
+			service.appendToAllFiles(tag, text);
+			return null;
+		} catch (NoSuchTagException ex) {
+			return new AttributedString("Error: Tag " + tag + " does not exist", AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+		} catch (IOException e) {
+			return new AttributedString("Error: " + e.getMessage(), AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+		}
+	}
+
+	@ShellMethod("Cat part of a file, starting at a byte offset")
+	public CharSequence catRange(String file, long offset, int length) {
+		try {
+			return service.readFile(file, offset, length);
+		} catch (IOException | IllegalArgumentException e) {
+			return new AttributedString("Error: " + e.getMessage(), AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+		}
+	}
+
+	@ShellMethod("Show the last lines of a file")
+	public CharSequence tail(String file, @ShellOption(defaultValue = "10") int lines) {
+		try {
+			return service.tail(file, lines);
+		} catch (IOException | IllegalArgumentException e) {
+			return new AttributedString("Error: " + e.getMessage(), AttributedStyle.DEFAULT.foreground(AttributedStyle.RED));
+		}
+	}
+
+	@ShellMethod("Show latency percentiles per operation, lock wait and hold times, and I/O counters; --reset clears them")
+	public CharSequence stats(@ShellOption(defaultValue = "false") boolean reset) {
+		TagManagerStats stats = ((FileTagManager) service).getStats();
+		String report = stats.report();
+		if (reset) {
+			stats.reset();
+		}
+		return report;
+	}
 }
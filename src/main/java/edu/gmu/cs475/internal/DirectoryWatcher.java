@@ -0,0 +1,243 @@
+package edu.gmu.cs475.internal;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import edu.gmu.cs475.FileTagManager;
+import edu.gmu.cs475.TaggedFile;
+
+/**
+ * Keeps a FileTagManager's set of files in sync with the directory tree
+ * under BASEDIR, without rescanning it.
+ *
+ * Events are collected for a short window after the first one arrives and
+ * then applied as one addFiles and one removeFiles call, so dropping or
+ * deleting thousands of files at once costs two short write-locked sections
+ * rather than one per file. A file created and deleted within the same window
+ * (like the temporary files of an atomic echoAll) is never seen at all.
+ *
+ * A batch that fails (e.g. a directory vanished while it was walked) is
+ * counted in the manager's stats and kept for {@link #getFailure()}; the
+ * next batch then rescans the whole tree.
+ */
+public class DirectoryWatcher implements Closeable {
+
+	public static final long DEFAULT_BATCH_MILLIS = 200;
+
+	private final Path root;
+	private final FileTagManager manager;
+	private final long batchMillis;
+	private final WatchService watchService;
+	private final Thread thread;
+	private volatile IOException failure;
+	private boolean resyncNext;// only touched by the watcher thread
+
+	private DirectoryWatcher(Path root, FileTagManager manager, long batchMillis) throws IOException {
+		this.root = root;
+		this.manager = manager;
+		this.batchMillis = batchMillis;
+		this.watchService = root.getFileSystem().newWatchService();
+		registerAll(root, null);
+		this.thread = new Thread(this::run, "DirectoryWatcher");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Starts watching a directory tree
+	 *
+	 * @param root
+	 *            Directory to watch, recursively
+	 * @param manager
+	 *            Manager to add new files to and remove deleted files from
+	 * @param batchMillis
+	 *            How long to keep collecting events before applying them
+	 * @return The running watcher
+	 * @throws IOException
+	 */
+	public static DirectoryWatcher start(Path root, FileTagManager manager, long batchMillis) throws IOException {
+		DirectoryWatcher watcher = new DirectoryWatcher(root, manager, batchMillis);
+		watcher.thread.start();
+		return watcher;
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return Why the latest batch failed, or null if it succeeded (or none
+	 *         ran yet)
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				Set<Path> created = new LinkedHashSet<>();
+				Set<Path> deleted = new LinkedHashSet<>();
+				boolean overflow = drain(watchService.take(), created, deleted);
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchMillis);
+				long remaining;
+				while ((remaining = deadline - System.nanoTime()) > 0) {
+					WatchKey key = watchService.poll(remaining, TimeUnit.NANOSECONDS);
+					if (key != null)
+						overflow |= drain(key, created, deleted);
+				}
+				try {
+					if (overflow || resyncNext)
+						resync();
+					else
+						apply(created, deleted);
+					resyncNext = false;
+					failure = null;
+				} catch (IOException | UncheckedIOException e) {
+					failure = e instanceof IOException ? (IOException) e : ((UncheckedIOException) e).getCause();
+					manager.getStats().watcherFailed();
+					resyncNext = true;// events of this batch may be half applied
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Collects the events of one key. A path's latest event wins, so a create
+	 * followed by a delete in the same batch cancels out.
+	 *
+	 * @return True if events were lost and a full resync is needed
+	 */
+	private boolean drain(WatchKey key, Set<Path> created, Set<Path> deleted) {
+		boolean overflow = false;
+		Path dir = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				overflow = true;
+				continue;
+			}
+			Path path = dir.resolve((Path) event.context());
+			if (isEchoTemp(path))
+				continue;
+			if (event.kind() == ENTRY_CREATE) {
+				deleted.remove(path);
+				created.add(path);
+			} else if (event.kind() == ENTRY_DELETE) {
+				if (!created.remove(path))
+					deleted.add(path);
+			}
+		}
+		key.reset();
+		return overflow;
+	}
+
+	private void apply(Set<Path> created, Set<Path> deleted) throws IOException {
+		List<Path> newFiles = new ArrayList<>();
+		for (Path path : created) {
+			if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+				registerAll(path, newFiles);// files may have landed before the directory was registered
+			else if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS))
+				newFiles.add(path);
+		}
+		if (!newFiles.isEmpty())
+			manager.addFiles(newFiles);
+
+		if (deleted.isEmpty())
+			return;
+		List<Path> gone = new ArrayList<>(deleted);
+		List<Path> dirs = new ArrayList<>();
+		for (Path d : deleted)
+			if (manager.findFile(d.toString()) == null)
+				dirs.add(d);
+		if (!dirs.isEmpty()) {
+			for (TaggedFile f : manager.listAllFiles()) {// a deleted directory takes every file under it along
+				Path path = f.getPath();
+				for (Path d : dirs) {
+					if (path.startsWith(d)) {
+						gone.add(path);
+						break;
+					}
+				}
+			}
+		}
+		manager.removeFiles(gone);
+	}
+
+	/**
+	 * Compares the manager's files against a fresh walk of the tree, adding
+	 * and removing files to match. Done whenever events were dropped by the
+	 * OS or a batch failed; may also be called from any other thread.
+	 *
+	 * @throws IOException
+	 */
+	public void resync() throws IOException {
+		List<Path> onDisk = new ArrayList<>();
+		registerAll(root, onDisk);
+		Set<Path> present = new HashSet<>(onDisk);
+		List<Path> gone = new ArrayList<>();
+		for (TaggedFile f : manager.listAllFiles())
+			if (!present.contains(f.getPath()))
+				gone.add(f.getPath());
+		manager.removeFiles(gone);
+		manager.addFiles(onDisk);
+	}
+
+	/**
+	 * Registers a directory and every directory under it with the watch
+	 * service
+	 *
+	 * @param dir
+	 * @param files
+	 *            If not null, receives every regular file found on the way
+	 * @throws IOException
+	 */
+	private void registerAll(Path dir, List<Path> files) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				d.register(watchService, ENTRY_CREATE, ENTRY_DELETE);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (files != null && attrs.isRegularFile() && !isEchoTemp(file))
+					files.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static boolean isEchoTemp(Path path) {
+		String name = path.getFileName().toString();
+		return name.startsWith(".") && name.endsWith(FileTagManager.ECHO_TEMP_SUFFIX);
+	}
+}
@@ -0,0 +1,88 @@
+package edu.gmu.cs475.internal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Lists every regular file under a directory using a fork/join pool.
+ * 
+ * Each task walks its subtree sequentially with Files.walkFileTree, which
+ * hands over each entry's attributes so no second stat is needed. Once a task
+ * has visited more than the threshold number of entries, each further
+ * subdirectory it reaches is forked off as its own task instead of being
+ * descended into, so small trees stay on one thread and large trees spread
+ * across the pool one directory at a time.
+ */
+class ParallelFileWalker extends RecursiveTask<List<Path>> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Path dir;
+	private final int threshold;
+
+	private ParallelFileWalker(Path dir, int threshold) {
+		this.dir = dir;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @param root
+	 *            Directory to walk
+	 * @param threshold
+	 *            Number of entries a task visits before it starts splitting
+	 *            off subdirectories
+	 * @return Every regular file under root
+	 * @throws IOException
+	 */
+	static List<Path> walk(Path root, int threshold) throws IOException {
+		try {
+			return ForkJoinPool.commonPool().invoke(new ParallelFileWalker(root, threshold));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	@Override
+	protected List<Path> compute() {
+		List<Path> files = new ArrayList<>();
+		List<ParallelFileWalker> forked = new ArrayList<>();
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+				private int visited;
+
+				@Override
+				public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+					if (visited++ >= threshold && !d.equals(dir)) {
+						ParallelFileWalker task = new ParallelFileWalker(d, threshold);
+						task.fork();
+						forked.add(task);
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					visited++;
+					if (attrs.isRegularFile())
+						files.add(file);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		for (ParallelFileWalker task : forked)
+			files.addAll(task.join());
+		return files;
+	}
+}
@@ -0,0 +1,19 @@
+package edu.gmu.cs475.struct;
+
+/**
+ * What a batch tag operation did to one file
+ */
+public enum TagOutcome {
+	/**
+	 * The file's tags were changed
+	 */
+	CHANGED,
+	/**
+	 * The file already had (or, when removing, already lacked) the tag
+	 */
+	UNCHANGED,
+	/**
+	 * No file exists with the given name/path
+	 */
+	NO_SUCH_FILE
+}
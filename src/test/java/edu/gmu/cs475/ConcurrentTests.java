@@ -13,6 +13,8 @@ import org.junit.Test;
 
 import edu.gmu.cs475.internal.Command;
 import edu.gmu.cs475.struct.ITag;
+import edu.gmu.cs475.struct.NoSuchTagException;
+import edu.gmu.cs475.struct.TagExistsException;
 import edu.gmu.cs475.internal.DeadlockDetectorAndRerunRule;
 
 public class ConcurrentTests {
@@ -162,8 +164,36 @@ public class ConcurrentTests {
 	 * by listTags()
 	 */
 	@Test
-	public void testP1ConcurrentAddTagSameTags() {
-
+	public void testP1ConcurrentAddTagSameTags() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+		List<Callable<Integer>> taskList = new ArrayList<>();
+		for (int i = 0; i < N_THREADS; i++) {
+			taskList.add(() -> {//count how many of the 1000 adds win on this thread
+				int added = 0;
+				for (int j = 0; j < 1000; j++) {
+					try {
+						fileManager.addTag("same" + j);
+						added++;
+					} catch (TagExistsException e) {
+						//another thread added it first
+					}
+				}
+				return added;
+			});
+		}
+		int total = 0;
+		for (Future<Integer> future : executor.invokeAll(taskList)) {
+			total += future.get();
+		}
+		executor.shutdown();
+		assertEquals("Each tag should be added exactly once", 1000, total);
+
+		Set<String> names = new HashSet<>();
+		for (ITag tag : fileManager.listTags())
+			names.add(tag.getName());
+		for (int j = 0; j < 1000; j++)
+			assertTrue(names.contains("same" + j));
+		assertEquals(1001, names.size());
 	}
 
 	/**
@@ -202,7 +232,85 @@ public class ConcurrentTests {
 	 */
 	@Test
 	public void testP2RemoveTagWhileRemovingTags() throws Exception {
+		fileManager.addTag("removeMe");
+		List<String> names = new ArrayList<>();
+		for (TaggedFile file : (Iterable<? extends TaggedFile>) fileManager.listAllFiles()) {
+			names.add(file.getName());
+			fileManager.tagFile(file.getName(), "removeMe");
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+		List<Callable<Integer>> taskList = new ArrayList<>();
+		for (int i = 0; i < N_THREADS; i++) {
+			taskList.add(() -> {//count how many removals succeed on this thread
+				int removed = 0;
+				for (String name : names) {
+					if (fileManager.removeTag(name, "removeMe"))
+						removed++;
+				}
+				return removed;
+			});
+		}
+		int total = 0;
+		for (Future<Integer> future : executor.invokeAll(taskList)) {
+			total += future.get();
+		}
+		executor.shutdown();
 
+		assertEquals("Each removeTag should succeed exactly once", names.size(), total);
+		assertFalse(fileManager.listFilesByTag("removeMe").iterator().hasNext());
+		int untagged = 0;
+		for (Object file : fileManager.listFilesByTag("untagged"))
+			untagged++;
+		assertEquals(names.size(), untagged);
+	}
+
+	/**
+	 * Tag every file, then have one thread rename that tag back and forth
+	 * while the other threads list its files by both names. Every listing
+	 * must either fail with NoSuchTagException or contain every file, never a
+	 * partial list.
+	 */
+	@Test
+	public void testP2ListFilesWhileEditingTag() throws Exception {
+		fileManager.addTag("a");
+		int nFiles = 0;
+		for (TaggedFile file : (Iterable<? extends TaggedFile>) fileManager.listAllFiles()) {
+			fileManager.tagFile(file.getName(), "a");
+			nFiles++;
+		}
+		int expected = nFiles;
+
+		ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+		Future<?> renamer = executor.submit(() -> {
+			for (int i = 0; i < 1000; i++) {
+				fileManager.editTag(i % 2 == 0 ? "a" : "b", i % 2 == 0 ? "b" : "a");
+			}
+			return null;
+		});
+		List<Callable<Void>> readers = new ArrayList<>();
+		for (int i = 0; i < N_THREADS - 1; i++) {
+			readers.add(() -> {
+				while (!renamer.isDone()) {
+					for (String name : new String[] { "a", "b" }) {
+						try {
+							int count = 0;
+							for (Object file : fileManager.listFilesByTag(name))
+								count++;
+							assertEquals(expected, count);
+						} catch (NoSuchTagException e) {
+							//renamed away, fine
+						}
+					}
+				}
+				return null;
+			});
+		}
+		for (Future<Void> future : executor.invokeAll(readers)) {
+			future.get();
+		}
+		renamer.get();
+		executor.shutdown();
 	}
 
 	/**
@@ -6,11 +6,31 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -18,10 +38,12 @@ import org.junit.Test;
 import org.junit.rules.Timeout;
 
 import edu.gmu.cs475.internal.Command;
+import edu.gmu.cs475.internal.DirectoryWatcher;
 import edu.gmu.cs475.struct.ITag;
 import edu.gmu.cs475.struct.ITaggedFile;
 import edu.gmu.cs475.struct.NoSuchTagException;
 import edu.gmu.cs475.struct.TagExistsException;
+import edu.gmu.cs475.struct.TagOutcome;
 
 public class NonConcurrentTests {
 	AbstractFileTagManager fileManager;
@@ -61,6 +83,20 @@ public class NonConcurrentTests {
 		assertTrue("Expected an exception to be thrown", exception);
 	}
 
+	@Test
+	public void testP1AddTagAlreadyExistsKeepsIdsDense() throws Exception {
+		Tag foo = (Tag) fileManager.addTag("foo");
+		for (int i = 0; i < 3; i++) {
+			try {
+				fileManager.addTag("foo");
+				fail("Expected TagExistsException");
+			} catch (TagExistsException ex) {
+			}
+		}
+		Tag bar = (Tag) fileManager.addTag("bar");
+		assertEquals("A rejected addTag should not use up an id", foo.getId() + 1, bar.getId());
+	}
+
 	@Test
 	public void testP1EditTag() throws Exception {
 		fileManager.addTag("foo");
@@ -209,6 +245,228 @@ public class NonConcurrentTests {
 		assertFalse(fileManager.removeTag("blah", "foo"));
 	}
 
+	@Test
+	public void testP2TagFilesBatch() throws Exception {
+		fileManager.init(Arrays.asList(Paths.get("a"), Paths.get("b")));
+		fileManager.addTag("x");
+		fileManager.tagFile("b", "x");
+
+		Map<String, TagOutcome> res = fileManager.tagFiles(Arrays.asList("a", "b", "nope"), "x");
+		assertEquals(TagOutcome.CHANGED, res.get("a"));
+		assertEquals(TagOutcome.UNCHANGED, res.get("b"));
+		assertEquals(TagOutcome.NO_SUCH_FILE, res.get("nope"));
+		assertEquals("x", fileManager.getTags("a").iterator().next().getName());
+		assertFalse(fileManager.listFilesByTag("untagged").iterator().hasNext());
+
+		res = fileManager.removeTags(Arrays.asList("a", "b"), "x");
+		assertEquals(TagOutcome.CHANGED, res.get("a"));
+		assertEquals(TagOutcome.CHANGED, res.get("b"));
+		assertEquals("untagged", fileManager.getTags("b").iterator().next().getName());
+		assertEquals(TagOutcome.UNCHANGED, fileManager.removeTags(Collections.singletonList("a"), "x").get("a"));
+	}
+
+	@Test
+	public void testP2TagByPattern() throws Exception {
+		Path logs = Paths.get(System.getProperty("user.dir"), "logs");
+		fileManager.init(Arrays.asList(logs.resolve("a.gz"), logs.resolve("x/b.gz"), logs.resolve("x/b.txt"), Paths.get(System.getProperty("user.dir"), "c.gz")));
+		fileManager.addTag("gz");
+
+		Map<String, TagOutcome> res = fileManager.tagByPattern("logs/**.gz", "gz");
+		assertEquals(2, res.size());
+		assertEquals(TagOutcome.CHANGED, res.get(logs.resolve("x/b.gz").toString()));
+
+		res = fileManager.tagByPattern("regex:.*/logs/[^/]*\\.gz", "gz");
+		assertEquals(TagOutcome.UNCHANGED, res.get(logs.resolve("a.gz").toString()));
+		assertEquals(1, res.size());
+
+		String other = Paths.get(System.getProperty("user.dir"), "c.gz").toString();
+		res = fileManager.tagByPattern("regex:" + logs.resolve("x/b.gz").toString().replace(".", "\\.") + "|" + other.replace(".", "\\."), "gz");
+		assertEquals("Both branches of the alternation should match", 2, res.size());
+		assertEquals(TagOutcome.CHANGED, res.get(other));
+	}
+
+	@Test
+	public void testP2Stats() throws Exception {
+		fileManager.init(Arrays.asList(Paths.get("a"), Paths.get("b")));
+		fileManager.addTag("foo");
+		fileManager.tagFile("a", "foo");
+		fileManager.tagFile("b", "foo");
+		try {
+			fileManager.tagFile("c", "foo");
+			fail("Expected NoSuchFileException");
+		} catch (NoSuchFileException ex) {
+		}
+		fileManager.getTags("a");
+
+		TagManagerStats stats = ((FileTagManager) fileManager).getStats();
+		assertEquals(3, stats.getHistogram(TagManagerStats.Op.TAG_FILE).getCount());
+		assertEquals(1, stats.getOperationLatencies().get("addTag").getCount());
+		assertEquals(1, stats.getOptimisticReads());
+		assertTrue(stats.getLockHold().getCount() >= 4);
+		assertEquals(0, stats.getFileLockWait().getCount());
+		long stamp = fileManager.lockFile("a", false);
+		fileManager.unLockFile("a", stamp, false);
+		assertEquals(1, stats.getFileLockWait().getCount());
+		stats.reset();
+		assertEquals(0, stats.getHistogram(TagManagerStats.Op.TAG_FILE).getCount());
+		assertEquals(0, stats.getFileLockWait().getCount());
+
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			h.record(i * 1000L);
+		}
+		assertEquals(1000, h.getCount());
+		assertEquals(1000000, h.getMax());
+		assertTrue(Math.abs(h.getValueAtPercentile(50) - 500000) <= 500000 * 0.04);
+		assertTrue(Math.abs(h.getValueAtPercentile(99) - 990000) <= 990000 * 0.04);
+	}
+
+	@Test
+	public void testP2QueryTags() throws Exception {
+		fileManager.init(Arrays.asList(Paths.get("a"), Paths.get("b"), Paths.get("c")));
+		fileManager.addTag("x");
+		fileManager.addTag("y");
+		fileManager.tagFile("a", "x");
+		fileManager.tagFile("a", "y");
+		fileManager.tagFile("b", "x");
+
+		Iterator<? extends ITaggedFile> files = fileManager.listFilesByQuery("x AND NOT y").iterator();
+		assertEquals("b", files.next().getName());
+		assertFalse(files.hasNext());
+
+		files = fileManager.listFilesByQuery("NOT x").iterator();
+		assertEquals("c", files.next().getName());
+		assertFalse(files.hasNext());
+
+		int count = 0;
+		for (ITaggedFile f : fileManager.listFilesByQuery("(x & y) | untagged | !x"))
+			count++;
+		assertEquals(2, count);
+	}
+
+	@Test(expected = NoSuchTagException.class)
+	public void testP2QueryNoSuchTag() throws Exception {
+		fileManager.init(Collections.singletonList(Paths.get("fooFile")));
+		fileManager.listFilesByQuery("untagged OR foo");
+	}
+
+	@Test
+	public void testP2TagsPersistThroughJournal() throws Exception {
+		Path dir = Files.createTempDirectory("journal");
+		TagJournal journal = TagJournal.open(dir);
+		fileManager = new FileTagManager(journal);
+		fileManager.init(Collections.singletonList(Paths.get("fooFile")));
+		fileManager.addTag("foo");
+		fileManager.addTag("bar");
+		fileManager.tagFile("fooFile", "foo");
+		fileManager.editTag("bar", "baz");
+		journal.close();
+
+		journal = TagJournal.open(dir);
+		fileManager = new FileTagManager(journal);
+		fileManager.init(Collections.singletonList(Paths.get("fooFile")));
+		Iterator<? extends ITag> tags = fileManager.getTags("fooFile").iterator();
+		assertEquals("foo", tags.next().getName());
+		assertFalse(tags.hasNext());
+		boolean foundBaz = false;
+		for (ITag t : fileManager.listTags())
+			if (t.getName().equals("baz"))
+				foundBaz = true;
+		assertTrue("Renamed tag should have been restored", foundBaz);
+		journal.close();
+
+		// Everything is in the snapshot by now
+		journal = TagJournal.open(dir);
+		fileManager = new FileTagManager(journal);
+		fileManager.init(Collections.singletonList(Paths.get("fooFile")));
+		tags = fileManager.getTags("fooFile").iterator();
+		assertEquals("foo", tags.next().getName());
+		assertFalse(tags.hasNext());
+		assertFalse(fileManager.listFilesByTag("untagged").iterator().hasNext());
+		journal.close();
+	}
+
+	@Test
+	public void testP2RemovedFileComesBackUntaggedAfterRestart() throws Exception {
+		Path dir = Files.createTempDirectory("journal");
+		TagJournal journal = TagJournal.open(dir);
+		FileTagManager manager = new FileTagManager(journal);
+		manager.init(Collections.singletonList(Paths.get("fooFile")));
+		manager.addTag("t");
+		manager.tagFile("fooFile", "t");
+		manager.removeFiles(Collections.singletonList(Paths.get("fooFile")));
+		manager.addFiles(Collections.singletonList(Paths.get("fooFile")));
+		Iterator<? extends ITag> tags = manager.getTags("fooFile").iterator();
+		assertEquals("untagged", tags.next().getName());
+		assertFalse(tags.hasNext());
+		journal.close();
+
+		journal = TagJournal.open(dir);
+		manager = new FileTagManager(journal);
+		manager.init(Collections.singletonList(Paths.get("fooFile")));
+		tags = manager.getTags("fooFile").iterator();
+		assertEquals("untagged", tags.next().getName());
+		assertFalse(tags.hasNext());
+		assertFalse(manager.listFilesByTag("t").iterator().hasNext());
+		journal.close();
+	}
+
+	@Test
+	public void testP2JournalKeepsRecordsLoggedDuringCompaction() throws Exception {
+		Path dir = Files.createTempDirectory("journal");
+		TagJournal journal = TagJournal.open(dir);
+		journal.sync(journal.append(TagJournal.ADD_TAG, "foo"));
+		TagJournal.Compaction compaction = journal.startCompaction(Collections.singletonList(new Tag(1, "foo")), Collections.emptyList());
+		journal.sync(journal.append(TagJournal.ADD_TAG, "bar"));
+		compaction.finish();
+		journal.close();
+
+		journal = TagJournal.open(dir);
+		TagSnapshot snapshot = journal.openSnapshot();
+		assertEquals(1, snapshot.getTagCount());
+		assertEquals("foo", snapshot.getTagName(0));
+		List<String> replayed = new ArrayList<>();
+		journal.replay((op, args) -> replayed.add(args[0]));
+		assertEquals(Collections.singletonList("bar"), replayed);
+		journal.close();
+	}
+
+	@Test
+	public void testP3DirectoryWatcher() throws Exception {
+		Path dir = Files.createTempDirectory("watched");
+		Path a = Files.createFile(dir.resolve("a"));
+		FileTagManager manager = new FileTagManager();
+		manager.init(Collections.singletonList(a));
+		try (DirectoryWatcher watcher = DirectoryWatcher.start(dir, manager, 20)) {
+			Path b = Files.createFile(dir.resolve("b"));
+			awaitKnown(manager, b, true);
+			Files.delete(a);
+			awaitKnown(manager, a, false);
+
+			Path sub = Files.createDirectory(dir.resolve("sub"));
+			Path c = Files.createFile(sub.resolve("c"));
+			awaitKnown(manager, c, true);
+			Files.delete(c);
+			Files.delete(sub);
+			awaitKnown(manager, c, false);
+
+			manager.removeFiles(Collections.singletonList(b));
+			manager.addFiles(Collections.singletonList(dir.resolve("gone")));
+			watcher.resync();
+			assertNotNull(manager.findFile(b.toString()));
+			assertEquals(null, manager.findFile(dir.resolve("gone").toString()));
+			assertEquals(null, watcher.getFailure());
+			assertEquals(0, manager.getStats().getWatcherFailures());
+		}
+	}
+
+	private static void awaitKnown(FileTagManager manager, Path file, boolean known) throws InterruptedException {
+		for (int i = 0; i < 250 && (manager.findFile(file.toString()) != null) != known; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(file + (known ? " should have been added" : " should have been removed"), known, manager.findFile(file.toString()) != null);
+	}
+
 	@Test
 	public void testP3CatAll() throws Exception {
 		fileManager.init(Command.listAllFiles());
@@ -227,6 +485,175 @@ public class NonConcurrentTests {
 		fileManager.echoToAllFiles("untagged", "test");
 	}
 
+	@Test
+	public void testP3CatAllToChannel() throws Exception {
+		fileManager.init(Command.listAllFiles());
+		fileManager.echoToAllFiles("untagged", "test");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long written = fileManager.catAllFiles("untagged", Channels.newChannel(out));
+		assertEquals(out.size(), written);
+		assertEquals(fileManager.catAllFiles("untagged"), new String(out.toByteArray()));
+	}
+
+	@Test
+	public void testP3CatAllParallel() throws Exception {
+		fileManager.init(Command.listAllFiles());
+		fileManager.echoToAllFiles("untagged", "test");
+		String sequential = fileManager.catAllFiles("untagged");
+		((FileTagManager) fileManager).setIoParallelism(4);
+		assertEquals(sequential, fileManager.catAllFiles("untagged"));
+	}
+
+	@Test
+	public void testP3EchoAllAtomic() throws Exception {
+		fileManager.init(Command.listAllFiles());
+		((FileTagManager) fileManager).setIoParallelism(4);
+		((FileTagManager) fileManager).setAtomicEcho(true);
+		fileManager.echoToAllFiles("untagged", "atomic");
+		int count = 0;
+		for (ITaggedFile f : fileManager.listFilesByTag("untagged")) {
+			assertEquals("atomic", fileManager.readFile(f.getName()));
+			count++;
+		}
+		assertEquals("Temporary files should have been renamed into place", count, Command.listAllFiles().size());
+	}
+
+	@Test
+	public void testP3EchoAllAtomicKeepsPermissions() throws Exception {
+		fileManager.init(Command.listAllFiles());
+		Path file = Paths.get(fileManager.listFilesByTag("untagged").iterator().next().getName());
+		if (Files.getFileAttributeView(file, PosixFileAttributeView.class) == null) {
+			return;// no POSIX permissions to keep
+		}
+		Set<PosixFilePermission> mode = PosixFilePermissions.fromString("rw-r--r--");
+		Files.setPosixFilePermissions(file, mode);
+		((FileTagManager) fileManager).setAtomicEcho(true);
+		fileManager.echoToAllFiles("untagged", "atomic");
+		assertEquals(mode, Files.getPosixFilePermissions(file));
+	}
+
+	@Test
+	public void testP3EchoAllAtomicFailedRenameLeavesNoTempFiles() throws Exception {
+		Path dir = Files.createTempDirectory(AbstractFileTagManager.BASEDIR, "echo");
+		try {
+			Path first = Files.write(dir.resolve("first"), "old".getBytes());
+			Path blocked = Files.createDirectory(dir.resolve("blocked"));// a non-empty directory can't be renamed over
+			Files.createFile(blocked.resolve("inside"));
+			Path last = Files.write(dir.resolve("last"), "old".getBytes());
+			FileTagManager manager = new FileTagManager();
+			manager.init(Arrays.asList(first, blocked, last));
+			manager.setAtomicEcho(true);
+			try {
+				manager.echoToAllFiles("untagged", "new");
+				fail("Expected the rename over a directory to fail");
+			} catch (IOException ex) {
+			}
+			assertTrue(Files.isDirectory(blocked));
+			assertEquals("new", new String(Files.readAllBytes(first)));
+			assertEquals("old", new String(Files.readAllBytes(last)));
+			try (DirectoryStream<Path> left = Files.newDirectoryStream(dir, "*" + FileTagManager.ECHO_TEMP_SUFFIX)) {
+				assertFalse("Temporary files should have been deleted", left.iterator().hasNext());
+			}
+		} finally {
+			try (Stream<Path> walk = Files.walk(dir)) {
+				for (Path p : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+					Files.delete(p);
+			}
+		}
+	}
+
+	@Test
+	public void testP3ContentCache() throws Exception {
+		fileManager.init(Command.listAllFiles());
+		((FileTagManager) fileManager).setContentCache(1 << 20);
+		ContentCache cache = ((FileTagManager) fileManager).getContentCache();
+		fileManager.echoToAllFiles("untagged", "before");
+		String file = fileManager.listFilesByTag("untagged").iterator().next().getName();
+
+		assertEquals("before", fileManager.readFile(file));
+		assertEquals("before", fileManager.readFile(file));
+		assertEquals(1, cache.getHits());
+
+		fileManager.writeFile(file, "after!");//same size, possibly the same mtime
+		assertEquals("after!", fileManager.readFile(file));
+		fileManager.echoToAllFiles("untagged", "again!");
+		assertEquals("again!", fileManager.readFile(file));
+		assertEquals(fileManager.catAllFiles("untagged"), new String(new char[Command.listAllFiles().size()]).replace("\0", "again!"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		fileManager.catAllFiles("untagged", Channels.newChannel(out));
+		assertEquals(fileManager.catAllFiles("untagged"), new String(out.toByteArray()));
+		assertTrue(cache.getUsedBytes() > 0);
+	}
+
+	@Test
+	public void testP3ReadLargeFile() throws Exception {
+		byte[] content = new byte[(int) AbstractFileTagManager.MAP_THRESHOLD * 2];
+		Arrays.fill(content, (byte) 'x');
+		content[content.length - 1] = 'y';
+		Path big = Files.createTempFile(AbstractFileTagManager.BASEDIR, "big", ".txt");
+		try {
+			Files.write(big, content);
+			ByteBuffer buffer = fileManager.readFileBuffer(big.toString());
+			assertTrue("Large files should be read off the heap", buffer.isDirect());
+			fileManager.writeFile(big.toString(), "");//must not invalidate the returned buffer
+			assertEquals(content.length, buffer.remaining());
+			assertEquals('y', buffer.get(content.length - 1));
+			Files.write(big, content);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			assertEquals(content.length, fileManager.readFile(big.toString(), Channels.newChannel(out)));
+			assertTrue(Arrays.equals(content, out.toByteArray()));
+		} finally {
+			Files.delete(big);
+		}
+	}
+
+	@Test
+	public void testP3AppendAllAndTail() throws Exception {
+		fileManager.init(Command.listAllFiles());
+		fileManager.echoToAllFiles("untagged", "one\n");
+		fileManager.appendToAllFiles("untagged", "two\n");
+		fileManager.appendToAllFiles("untagged", "three\n");
+		for (ITaggedFile f : fileManager.listFilesByTag("untagged")) {
+			assertEquals("one\ntwo\nthree\n", fileManager.readFile(f.getName()));
+		}
+
+		String file = fileManager.listFilesByTag("untagged").iterator().next().getName();
+		assertEquals("two", fileManager.readFile(file, 4, 3));
+		assertEquals("three\n", fileManager.readFile(file, 8, 100));
+		assertEquals("", fileManager.readFile(file, 100, 10));
+		assertEquals("two\nthree\n", fileManager.tail(file, 2));
+		assertEquals("one\ntwo\nthree\n", fileManager.tail(file, 10));
+		assertEquals("", fileManager.tail(file, 0));
+	}
+
+	@Test
+	public void testP3AsyncCatAndEchoAll() throws Exception {
+		fileManager.init(Command.listAllFiles());
+		try (AsyncFileTagManager async = new AsyncFileTagManager((FileTagManager) fileManager)) {
+			List<CompletableFuture<Void>> echoes = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				echoes.add(async.echoToAllFiles("untagged", "echo" + i));
+			}
+			CompletableFuture<String> cat = async.catAllFiles("untagged");
+			for (CompletableFuture<Void> echo : echoes) {
+				echo.get();
+			}
+			String content = cat.get();
+			int files = Command.listAllFiles().size();
+			assertEquals("Every file should have been written by the same echo", files * 5, content.length());
+			assertEquals(content.substring(0, 5), content.substring(content.length() - 5));
+			assertEquals(fileManager.catAllFiles("untagged"), async.catAllFiles("untagged").get());
+
+			try {
+				async.catAllFiles("nope").get();
+				fail("Expected NoSuchTagException");
+			} catch (ExecutionException ex) {
+				assertTrue(ex.getCause() instanceof NoSuchTagException);
+			}
+		}
+	}
+
 	@Test(expected = NoSuchTagException.class)
 	public void testP3EchoAllNoSuchTag() throws Exception {
 		fileManager.init(Command.listAllFiles());